@@ -82,7 +82,7 @@ public class ApnSettings {
 
 
     /**
-     * Load APN settings from system
+     * Load APN settings from system, or from the cache of the settings already loaded
      *  @param context
      * @param apnName the optional APN name to match
      * @param requestId the request ID for logging
@@ -90,11 +90,38 @@ public class ApnSettings {
     public static ApnSettings load(Context context, String apnName, int subId, String requestId)
             throws ApnException {
         LogUtil.i(requestId, "Loading APN using name " + apnName);
+        apnName = apnName != null ? apnName.trim() : null;
+        final ApnSettingsCache cache = ApnSettingsCache.getInstance();
+        cache.ensureObserving(context);
+        // Read before querying, so that settings changed meanwhile are not cached
+        final int generation = cache.getGeneration();
+        ApnSettings settings = cache.get(subId, apnName);
+        if (settings == null) {
+            settings = query(context, apnName, subId, requestId);
+            cache.put(subId, apnName, settings != null ? settings : ApnSettingsCache.NOT_FOUND,
+                    generation);
+        } else {
+            LogUtil.d(requestId, "APN from cache");
+        }
+        if (settings == null || settings == ApnSettingsCache.NOT_FOUND) {
+            throw new ApnException("Can not find valid APN");
+        }
+        return settings;
+    }
+
+    /**
+     * Query the APN settings from the carriers table
+     *
+     * @return the settings, or null if no valid MMS APN matches
+     * @throws ApnException if the matching APN has an invalid MMSC URL, or the carriers table
+     *         can't be queried
+     */
+    private static ApnSettings query(Context context, String apnName, int subId,
+            String requestId) throws ApnException {
         // TODO: CURRENT semantics is currently broken in telephony. Revive this when it is fixed.
         //String selection = Telephony.Carriers.CURRENT + " IS NOT NULL";
         String selection = null;
         String[] selectionArgs = null;
-        apnName = apnName != null ? apnName.trim() : null;
         if (!TextUtils.isEmpty(apnName)) {
             //selection += " AND " + Telephony.Carriers.APN + "=?";
             selection = Telephony.Carriers.APN + "=?";
@@ -110,50 +137,51 @@ public class ApnSettings {
                     selection,
                     selectionArgs,
                     null/*sortOrder*/);
-            if (cursor != null) {
-                String mmscUrl = null;
-                String proxyAddress = null;
-                // Default proxy port to 80
-                int proxyPort = 80;
-                while (cursor.moveToNext()) {
-                    // Read values from APN settings
-                    if (isValidApnType(
-                            cursor.getString(COLUMN_TYPE), PhoneConstants.APN_TYPE_MMS)) {
-                        mmscUrl = trimWithNullCheck(cursor.getString(COLUMN_MMSC));
-                        if (TextUtils.isEmpty(mmscUrl)) {
-                            continue;
-                        }
-                        mmscUrl = NetworkUtils.trimV4AddrZeros(mmscUrl);
-                        try {
-                            new URI(mmscUrl);
-                        } catch (URISyntaxException e) {
-                            throw new ApnException("Invalid MMSC url " + mmscUrl);
-                        }
-                        proxyAddress = trimWithNullCheck(cursor.getString(COLUMN_MMSPROXY));
-                        if (!TextUtils.isEmpty(proxyAddress)) {
-                            proxyAddress = NetworkUtils.trimV4AddrZeros(proxyAddress);
-                            final String portString =
-                                    trimWithNullCheck(cursor.getString(COLUMN_MMSPORT));
-                            if (!TextUtils.isEmpty(portString)) {
-                                try {
-                                    proxyPort = Integer.parseInt(portString);
-                                } catch (NumberFormatException e) {
-                                    LogUtil.e(requestId, "Invalid port " + portString + ", use 80");
-                                }
+            if (cursor == null) {
+                // E.g. the telephony provider is restarting, not to be cached as not found
+                throw new ApnException("Can not query APN settings");
+            }
+            String mmscUrl = null;
+            String proxyAddress = null;
+            // Default proxy port to 80
+            int proxyPort = 80;
+            while (cursor.moveToNext()) {
+                // Read values from APN settings
+                if (isValidApnType(
+                        cursor.getString(COLUMN_TYPE), PhoneConstants.APN_TYPE_MMS)) {
+                    mmscUrl = trimWithNullCheck(cursor.getString(COLUMN_MMSC));
+                    if (TextUtils.isEmpty(mmscUrl)) {
+                        continue;
+                    }
+                    mmscUrl = NetworkUtils.trimV4AddrZeros(mmscUrl);
+                    try {
+                        new URI(mmscUrl);
+                    } catch (URISyntaxException e) {
+                        throw new ApnException("Invalid MMSC url " + mmscUrl);
+                    }
+                    proxyAddress = trimWithNullCheck(cursor.getString(COLUMN_MMSPROXY));
+                    if (!TextUtils.isEmpty(proxyAddress)) {
+                        proxyAddress = NetworkUtils.trimV4AddrZeros(proxyAddress);
+                        final String portString =
+                                trimWithNullCheck(cursor.getString(COLUMN_MMSPORT));
+                        if (!TextUtils.isEmpty(portString)) {
+                            try {
+                                proxyPort = Integer.parseInt(portString);
+                            } catch (NumberFormatException e) {
+                                LogUtil.e(requestId, "Invalid port " + portString + ", use 80");
                             }
                         }
-                        return new ApnSettings(
-                                mmscUrl, proxyAddress, proxyPort, getDebugText(cursor));
                     }
+                    return new ApnSettings(
+                            mmscUrl, proxyAddress, proxyPort, getDebugText(cursor));
                 }
-
             }
         } finally {
             if (cursor != null) {
                 cursor.close();
             }
         }
-        throw new ApnException("Can not find valid APN");
+        return null;
     }
 
     private static String getDebugText(Cursor cursor) {
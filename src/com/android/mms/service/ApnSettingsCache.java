@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.Telephony;
+import android.util.ArrayMap;
+
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * Cache of the MMS APN settings by subscription and APN name, so that the attempts of the
+ * requests don't query the telephony carriers table and parse the APN again.
+ *
+ * The cache is cleared whenever the carriers table changes, and when the MMS config is reloaded
+ * since the APNs of a subscription depend on its operator. APNs which can't be found are cached
+ * for a short time too, so that a missing named APN doesn't cost a query before each fallback
+ * of a burst of requests, while an APN showing up late (e.g. before the SIM records are loaded)
+ * is still found soon.
+ */
+public class ApnSettingsCache {
+    // Cached for the APNs which can't be found
+    static final ApnSettings NOT_FOUND = new ApnSettings(null, null, 0, "APN [not found]");
+    // How long an APN which can't be found is cached
+    private static final long NOT_FOUND_TTL_MILLIS = 30 * 1000;
+
+    private static class Entry {
+        final ApnSettings mSettings;
+        final long mExpiryTime;
+
+        Entry(ApnSettings settings, long expiryTime) {
+            mSettings = settings;
+            mExpiryTime = expiryTime;
+        }
+    }
+
+    private static final ApnSettingsCache sInstance = new ApnSettingsCache();
+
+    public static ApnSettingsCache getInstance() {
+        return sInstance;
+    }
+
+    // Guards the fields below
+    private final Object mLock = new Object();
+    // APN settings by subId and APN name
+    private final Map<String, Entry> mEntries = new ArrayMap<>();
+    // Incremented on each invalidation, so that settings loaded before are not cached
+    private int mGeneration;
+    // The generation of the MMS config the entries were loaded with
+    private int mConfigGeneration;
+    private boolean mObserving;
+    private long mHitCount;
+    private long mMissCount;
+    private int mInvalidationCount;
+
+    private ApnSettingsCache() {}
+
+    private static String getKey(int subId, String apnName) {
+        return subId + "/" + (apnName != null ? apnName : "");
+    }
+
+    /**
+     * Start clearing the cache on changes of the carriers table, once
+     */
+    public void ensureObserving(Context context) {
+        synchronized (mLock) {
+            if (mObserving) {
+                return;
+            }
+            mObserving = true;
+        }
+        context.getApplicationContext().getContentResolver().registerContentObserver(
+                Telephony.Carriers.CONTENT_URI, true /*notifyForDescendants*/,
+                new ContentObserver(null) {
+                    @Override
+                    public void onChange(boolean selfChange, Uri uri) {
+                        LogUtil.d("APN settings changed: " + uri);
+                        invalidate();
+                    }
+                });
+    }
+
+    /**
+     * Look up APN settings
+     *
+     * @param subId   the subscription
+     * @param apnName the APN name, or null for any MMS APN
+     * @return the cached settings, {@link #NOT_FOUND} if the APN doesn't exist, or null if not
+     *         cached
+     */
+    public ApnSettings get(int subId, String apnName) {
+        synchronized (mLock) {
+            checkConfigGenerationLocked();
+            final String key = getKey(subId, apnName);
+            final Entry entry = mEntries.get(key);
+            if (entry != null && entry.mExpiryTime <= SystemClock.elapsedRealtime()) {
+                mEntries.remove(key);
+            } else if (entry != null) {
+                mHitCount++;
+                return entry.mSettings;
+            }
+            mMissCount++;
+            return null;
+        }
+    }
+
+    /**
+     * Cache APN settings
+     *
+     * @param settings   the settings, or {@link #NOT_FOUND} if the APN doesn't exist
+     * @param generation the generation when the settings were loaded, they are dropped if the
+     *                   cache has been invalidated since
+     */
+    public void put(int subId, String apnName, ApnSettings settings, int generation) {
+        synchronized (mLock) {
+            if (generation == mGeneration) {
+                final long expiryTime = settings == NOT_FOUND
+                        ? SystemClock.elapsedRealtime() + NOT_FOUND_TTL_MILLIS : Long.MAX_VALUE;
+                mEntries.put(getKey(subId, apnName), new Entry(settings, expiryTime));
+            }
+        }
+    }
+
+    public int getGeneration() {
+        synchronized (mLock) {
+            checkConfigGenerationLocked();
+            return mGeneration;
+        }
+    }
+
+    /**
+     * Drop all the settings, e.g. because the carriers table changed
+     */
+    public void invalidate() {
+        synchronized (mLock) {
+            invalidateLocked();
+        }
+    }
+
+    private void invalidateLocked() {
+        mEntries.clear();
+        mGeneration++;
+        mInvalidationCount++;
+    }
+
+    /**
+     * Drop all the settings if the MMS config was reloaded, e.g. because a subscription changed
+     */
+    private void checkConfigGenerationLocked() {
+        final int configGeneration = MmsConfigManager.getInstance().getConfigGeneration();
+        if (configGeneration != mConfigGeneration) {
+            mConfigGeneration = configGeneration;
+            invalidateLocked();
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.println(prefix + "APN settings cache: entries=" + mEntries.size()
+                    + " hits=" + mHitCount
+                    + " misses=" + mMissCount
+                    + " invalidations=" + mInvalidationCount);
+        }
+    }
+}
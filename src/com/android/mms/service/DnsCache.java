@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.os.SystemClock;
+import android.util.ArrayMap;
+
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Map;
+
+/**
+ * Cache of the addresses of the MMSC and proxy hosts resolved on one network, so that retries
+ * and back-to-back requests don't go through the carrier resolver again.
+ *
+ * The resolver APIs don't expose the TTL of the records, so entries expire after a TTL from the
+ * carrier config, see {@link MmsConfigManager#CONFIG_DNS_CACHE_TTL_MILLIS}. Failed lookups are
+ * not cached. The cache belongs to the HTTP client of a network and is flushed when the network
+ * is lost.
+ */
+public class DnsCache {
+    // Entries expire after this long, unless the carrier overrides it
+    public static final long DEFAULT_TTL_MILLIS = 60 * 1000;
+
+    /**
+     * Resolves a host on the network of the cache
+     */
+    public interface Resolver {
+        /**
+         * @return the addresses of the host, never empty
+         * @throws UnknownHostException if the host can't be resolved
+         */
+        InetAddress[] resolve(String host) throws UnknownHostException;
+    }
+
+    private static class Entry {
+        final InetAddress[] mAddresses;
+        final long mExpiryTime;
+
+        Entry(InetAddress[] addresses, long expiryTime) {
+            mAddresses = addresses;
+            mExpiryTime = expiryTime;
+        }
+    }
+
+    // Statistics of all the caches, guarded by sStatsLock
+    private static final Object sStatsLock = new Object();
+    private static long sHitCount;
+    private static long sMissCount;
+    private static long sFailedCount;
+    private static long sLookupTotalMillis;
+    private static long sLookupMaxMillis;
+    private static int sFlushCount;
+
+    private final long mTtlMillis;
+    private final Resolver mResolver;
+    // Guarded by itself
+    private final Map<String, Entry> mEntries = new ArrayMap<>();
+
+    /**
+     * @param ttlMillis how long the addresses are kept, 0 to always resolve
+     * @param resolver  resolves the hosts on the network
+     */
+    public DnsCache(long ttlMillis, Resolver resolver) {
+        mTtlMillis = ttlMillis;
+        mResolver = resolver;
+    }
+
+    /**
+     * Get the addresses of a host, resolving it if it isn't cached or has expired
+     *
+     * @param host the host name or literal address
+     * @return the addresses of the host, never empty
+     * @throws UnknownHostException if the host can't be resolved
+     */
+    public InetAddress[] lookup(String host) throws UnknownHostException {
+        final long now = SystemClock.elapsedRealtime();
+        synchronized (mEntries) {
+            final Entry entry = mEntries.get(host);
+            if (entry != null && entry.mExpiryTime > now) {
+                synchronized (sStatsLock) {
+                    sHitCount++;
+                }
+                return entry.mAddresses.clone();
+            }
+        }
+        InetAddress[] addresses = null;
+        try {
+            addresses = mResolver.resolve(host);
+        } finally {
+            final long lookupMillis = SystemClock.elapsedRealtime() - now;
+            final boolean failed = addresses == null || addresses.length == 0;
+            synchronized (sStatsLock) {
+                sMissCount++;
+                sLookupTotalMillis += lookupMillis;
+                sLookupMaxMillis = Math.max(sLookupMaxMillis, lookupMillis);
+                if (failed) {
+                    sFailedCount++;
+                }
+            }
+        }
+        if (addresses == null || addresses.length == 0) {
+            throw new UnknownHostException(host);
+        }
+        if (mTtlMillis > 0) {
+            synchronized (mEntries) {
+                mEntries.put(host, new Entry(addresses.clone(), now + mTtlMillis));
+            }
+        }
+        return addresses;
+    }
+
+    /**
+     * Drop all the addresses, e.g. because the network is gone
+     */
+    public void flush() {
+        synchronized (mEntries) {
+            mEntries.clear();
+        }
+        synchronized (sStatsLock) {
+            sFlushCount++;
+        }
+    }
+
+    /**
+     * Dump the statistics shared by all the caches
+     */
+    public static void dumpStats(PrintWriter pw, String prefix) {
+        synchronized (sStatsLock) {
+            final long lookupCount = sHitCount + sMissCount;
+            pw.println(prefix + "DNS cache: lookups=" + lookupCount
+                    + " hits=" + sHitCount
+                    + " hitRate=" + (lookupCount > 0 ? (sHitCount * 100 / lookupCount) : 0) + "%"
+                    + " failed=" + sFailedCount
+                    + " avgResolve=" + (sMissCount > 0 ? (sLookupTotalMillis / sMissCount) : 0)
+                    + "ms"
+                    + " maxResolve=" + sLookupMaxMillis + "ms"
+                    + " flushes=" + sFlushCount);
+        }
+    }
+}
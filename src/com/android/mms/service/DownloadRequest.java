@@ -28,6 +28,7 @@ import android.database.sqlite.SQLiteException;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.os.UserHandle;
 import android.os.UserManager;
@@ -48,6 +49,11 @@ import com.google.android.mms.pdu.RetrieveConf;
 import com.google.android.mms.util.SqliteWrapper;
 import com.android.mms.service.PhoneUtils;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
 /**
  * Request to download an MMS
  */
@@ -58,6 +64,12 @@ public class DownloadRequest extends MmsRequest {
     private final String mLocationUrl;
     private final PendingIntent mDownloadedIntent;
     private final Uri mContentUri;
+    // The caller's file for the response, opened once for all the attempts
+    private ParcelFileDescriptor mContentFd;
+    // Whether mContentFd is a regular file, which the response is streamed to as it arrives
+    private boolean mStreamResponse;
+    // Whether the response of the last attempt has been streamed to mContentFd
+    private boolean mResponseTransferred;
 
     public DownloadRequest(RequestManager manager, int subId, String locationUrl,
             Uri contentUri, PendingIntent downloadedIntent, String creator,
@@ -83,6 +95,10 @@ public class DownloadRequest extends MmsRequest {
             LogUtil.e(requestId, "MMS network is not ready!");
             throw new MmsHttpException(0/*statusCode*/, "MMS network is not ready");
         }
+        if (mStreamResponse) {
+            return downloadToContentFd(mmsHttpClient, apn, requestId, isVowifiConnected,
+                    firstTry);
+        }
         return mmsHttpClient.execute(
                 mLocationUrl,
                 null/*pud*/,
@@ -97,16 +113,72 @@ public class DownloadRequest extends MmsRequest {
                 firstTry);
     }
 
+    /**
+     * Stream the response to the caller's file. It is also kept in memory only if it has to be
+     * parsed to persist the message.
+     *
+     * @return the response if it has to be persisted, else null, or an empty response if the
+     *         body was empty
+     */
+    private byte[] downloadToContentFd(MmsHttpClient mmsHttpClient, ApnSettings apn,
+            String requestId, boolean isVowifiConnected, boolean firstTry)
+            throws MmsHttpException {
+        mResponseTransferred = false;
+        try {
+            // Drop what a failed attempt may have written
+            PduStreams.truncate(mContentFd);
+        } catch (IOException e) {
+            LogUtil.e(requestId, "Failed to truncate response file", e);
+            throw new MmsHttpException(0/*statusCode*/, e);
+        }
+        final OutputStream contentOut = new FileOutputStream(mContentFd.getFileDescriptor());
+        final ByteArrayOutputStream persistOut =
+                mRequestManager.getAutoPersistingPref() ? new ByteArrayOutputStream() : null;
+        final long size = mmsHttpClient.executeToStream(
+                mLocationUrl,
+                null/*body*/,
+                MmsHttpClient.METHOD_GET,
+                apn.isProxySet(),
+                apn.getProxyAddress(),
+                apn.getProxyPort(),
+                mMmsConfig,
+                mSubId,
+                requestId,
+                isVowifiConnected,
+                firstTry,
+                persistOut != null ? PduStreams.tee(contentOut, persistOut) : contentOut);
+        if (size < 1) {
+            // Nothing was copied, fail like a buffered empty response in transferResponse()
+            LogUtil.e(requestId, "Empty response");
+            return new byte[0];
+        }
+        mResponseTransferred = true;
+        return persistOut != null ? persistOut.toByteArray() : null;
+    }
+
     @Override
     protected PendingIntent getPendingIntent() {
         return mDownloadedIntent;
     }
 
+    Uri getContentUri() {
+        return mContentUri;
+    }
+
+    String getLocationUrl() {
+        return mLocationUrl;
+    }
+
     @Override
     protected int getQueueType() {
         return MmsService.QUEUE_INDEX_DOWNLOAD;
     }
 
+    @Override
+    protected int getPriority() {
+        return PRIORITY_DOWNLOAD;
+    }
+
     @Override
     protected Uri persistIfRequired(Context context, int result, byte[] response) {
         final String requestId = getRequestId();
@@ -125,30 +197,33 @@ public class DownloadRequest extends MmsRequest {
         try {
             final boolean supportMmsContentDisposition =
                     mMmsConfig.getBoolean(SmsManager.MMS_CONFIG_SUPPORT_MMS_CONTENT_DISPOSITION);
-            final GenericPdu pdu = (new PduParser(response, supportMmsContentDisposition)).parse();
+            // The retrieve status is in the headers, the parts are only decoded to store a
+            // message which was retrieved
+            GenericPdu pdu = PduHeaderParser.parseHeadersOnly(response, response.length,
+                    supportMmsContentDisposition);
+            boolean partsParsed = false;
+            if (pdu == null) {
+                // No body after the headers, or they can't be told apart from it
+                pdu = (new PduParser(response, supportMmsContentDisposition)).parse();
+                partsParsed = true;
+            }
             if (pdu == null || !(pdu instanceof RetrieveConf)) {
                 LogUtil.e(requestId, "persistIfRequired: invalid parsed PDU");
                 return null;
             }
-            final RetrieveConf retrieveConf = (RetrieveConf) pdu;
-            final int status = retrieveConf.getRetrieveStatus();
+            final int status = ((RetrieveConf) pdu).getRetrieveStatus();
             if (status != PduHeaders.RETRIEVE_STATUS_OK) {
                 LogUtil.e(requestId, "persistIfRequired: retrieve failed " + status);
-                // Update the retrieve status of the NotificationInd
-                final ContentValues values = new ContentValues(1);
-                values.put(Telephony.Mms.RETRIEVE_STATUS, status);
-                SqliteWrapper.update(
-                        context,
-                        context.getContentResolver(),
-                        Telephony.Mms.CONTENT_URI,
-                        values,
-                        LOCATION_SELECTION,
-                        new String[] {
-                                Integer.toString(PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND),
-                                mLocationUrl
-                        });
+                updateRetrieveStatus(context, status);
                 return null;
             }
+            if (!partsParsed) {
+                pdu = (new PduParser(response, supportMmsContentDisposition)).parse();
+                if (pdu == null || !(pdu instanceof RetrieveConf)) {
+                    LogUtil.e(requestId, "persistIfRequired: invalid parsed PDU");
+                    return null;
+                }
+            }
             // Store the downloaded message
             final PduPersister persister = PduPersister.getPduPersister(context);
             final Uri messageUri = persister.persist(
@@ -249,14 +324,56 @@ public class DownloadRequest extends MmsRequest {
      */
     @Override
     protected boolean transferResponse(Intent fillIn, final byte[] response) {
+        if (mResponseTransferred) {
+            // Already streamed to the content uri
+            return true;
+        }
+        if (response == null || response.length < 1) {
+            LogUtil.e(getRequestId(), "Empty response");
+            return false;
+        }
+        if (mContentFd != null) {
+            // A pipe, opened before the download
+            try {
+                new FileOutputStream(mContentFd.getFileDescriptor()).write(response);
+                return true;
+            } catch (IOException e) {
+                LogUtil.e(getRequestId(), "IO exception writing PDU", e);
+                return false;
+            }
+        }
         return mRequestManager.writePduToContentUri(mContentUri, response);
     }
 
+    /**
+     * Open the caller's file for the response, if not yet done
+     */
     @Override
     protected boolean prepareForHttpRequest() {
+        if (mContentFd == null) {
+            mContentFd = mRequestManager.openPduToContentUri(mContentUri);
+            // Only a regular file can be truncated when an attempt fails midway
+            mStreamResponse = mContentFd != null && mContentFd.getStatSize() >= 0;
+        }
         return true;
     }
 
+    @Override
+    public void processResult(Context context, int result, byte[] response,
+            int httpStatusCode) {
+        try {
+            super.processResult(context, result, response, httpStatusCode);
+        } finally {
+            if (mContentFd != null) {
+                try {
+                    mContentFd.close();
+                } catch (IOException e) {
+                }
+                mContentFd = null;
+            }
+        }
+    }
+
     /**
      * Try downloading via the carrier app.
      *
@@ -276,6 +393,39 @@ public class DownloadRequest extends MmsRequest {
         context.revokeUriPermission(mContentUri, Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
     }
 
+    @Override
+    protected boolean isResultPersisted() {
+        return mRequestManager.getAutoPersistingPref();
+    }
+
+    @Override
+    protected void markFailedInProvider(Context context) {
+        final long identity = Binder.clearCallingIdentity();
+        try {
+            updateRetrieveStatus(context, PduHeaders.RETRIEVE_STATUS_ERROR_TRANSIENT_FAILURE);
+        } finally {
+            Binder.restoreCallingIdentity(identity);
+        }
+    }
+
+    /**
+     * Update the retrieve status of the NotificationInd of the message
+     */
+    private void updateRetrieveStatus(Context context, int status) {
+        final ContentValues values = new ContentValues(1);
+        values.put(Telephony.Mms.RETRIEVE_STATUS, status);
+        SqliteWrapper.update(
+                context,
+                context.getContentResolver(),
+                Telephony.Mms.CONTENT_URI,
+                values,
+                LOCATION_SELECTION,
+                new String[] {
+                        Integer.toString(PduHeaders.MESSAGE_TYPE_NOTIFICATION_IND),
+                        mLocationUrl
+                });
+    }
+
     /**
      * Downloads the MMS through through the carrier app.
      */
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.telephony.SmsManager;
+import android.text.TextUtils;
+import android.util.SparseArray;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The common HTTP headers of the MMS requests of a subscription, computed once from the MMS
+ * config instead of for each request.
+ *
+ * A template is rebuilt when the MMS config is reloaded (SIM or carrier config change), when the
+ * macro values are invalidated, when the locale changes, or when the config values it is made
+ * of differ, e.g. because of the config overrides of a request.
+ */
+public class HttpHeaderTemplate {
+    private static final String HEADER_ACCEPT = "Accept";
+    private static final String HEADER_ACCEPT_LANGUAGE = "Accept-Language";
+    private static final String HEADER_USER_AGENT = "User-Agent";
+    private static final String HEADER_CONNECTION = "Connection";
+
+    // The "Accept" header value
+    private static final String HEADER_VALUE_ACCEPT =
+            "*/*, application/vnd.wap.mms-message, application/vnd.wap.sic";
+    private static final String HEADER_CONNECTION_CLOSE = "close";
+
+    // Used for configs that specify a UA_PROF_URL, but not a name
+    private static final String UA_PROF_TAG_NAME_DEFAULT = "x-wap-profile";
+
+    // The templates by subId, guarded by itself
+    private static final SparseArray<HttpHeaderTemplate> sTemplates = new SparseArray<>();
+
+    // What the template is built from
+    private final int mConfigGeneration;
+    private final int mMacroGeneration;
+    private final Locale mLocale;
+    private final String mUserAgent;
+    private final String mUaProfTagName;
+    private final String mUaProfUrl;
+    private final boolean mCloseConnection;
+    private final String mHttpParams;
+    private final String mNaiSuffix;
+    // The headers, in the order they are set
+    private final String[] mNames;
+    private final String[] mValues;
+
+    /**
+     * Get the template of a subscription, building it if the cached one is out of date
+     *
+     * @param context   the context, to resolve the macros of the extra headers
+     * @param mmsConfig the MMS config of the request
+     * @param subId     the subscription of the request
+     * @param requestId the request ID for logging
+     * @return the template
+     */
+    public static HttpHeaderTemplate get(Context context, Bundle mmsConfig, int subId,
+            String requestId) {
+        final int configGeneration = MmsConfigManager.getInstance().getConfigGeneration();
+        final int macroGeneration = MacroCache.getInstance().getGeneration();
+        final Locale locale = Locale.getDefault();
+        synchronized (sTemplates) {
+            final HttpHeaderTemplate template = sTemplates.get(subId);
+            if (template != null && template.matches(configGeneration, macroGeneration, locale,
+                    mmsConfig)) {
+                return template;
+            }
+        }
+        final HttpHeaderTemplate template = new HttpHeaderTemplate(context, configGeneration,
+                macroGeneration, locale, mmsConfig, subId);
+        LogUtil.i(requestId, "HTTP: headers built for subId " + subId
+                + ", User-Agent=" + template.mUserAgent
+                + ", UaProfUrl=" + template.mUaProfUrl);
+        synchronized (sTemplates) {
+            sTemplates.put(subId, template);
+        }
+        return template;
+    }
+
+    private HttpHeaderTemplate(Context context, int configGeneration, int macroGeneration,
+            Locale locale, Bundle mmsConfig, int subId) {
+        mConfigGeneration = configGeneration;
+        mMacroGeneration = macroGeneration;
+        mLocale = locale;
+        mUserAgent = mmsConfig.getString(SmsManager.MMS_CONFIG_USER_AGENT);
+        mUaProfTagName = mmsConfig.getString(SmsManager.MMS_CONFIG_UA_PROF_TAG_NAME);
+        mUaProfUrl = mmsConfig.getString(SmsManager.MMS_CONFIG_UA_PROF_URL);
+        mCloseConnection = mmsConfig.getBoolean(SmsManager.MMS_CONFIG_CLOSE_CONNECTION, false);
+        mHttpParams = mmsConfig.getString(SmsManager.MMS_CONFIG_HTTP_PARAMS);
+        mNaiSuffix = mmsConfig.getString(SmsManager.MMS_CONFIG_NAI_SUFFIX);
+
+        final List<String> names = new ArrayList<>();
+        final List<String> values = new ArrayList<>();
+        // Header: Accept
+        names.add(HEADER_ACCEPT);
+        values.add(HEADER_VALUE_ACCEPT);
+        // Header: Accept-Language
+        names.add(HEADER_ACCEPT_LANGUAGE);
+        values.add(MmsHttpClient.getCurrentAcceptLanguage(locale));
+        // Header: User-Agent
+        names.add(HEADER_USER_AGENT);
+        values.add(mUserAgent);
+        // Header: x-wap-profile
+        if (!TextUtils.isEmpty(mUaProfUrl)) {
+            names.add(TextUtils.isEmpty(mUaProfTagName)
+                    ? UA_PROF_TAG_NAME_DEFAULT : mUaProfTagName);
+            values.add(mUaProfUrl);
+        }
+        // Header: Connection: close (if needed)
+        // Some carriers require that the HTTP connection's socket is closed
+        // after an MMS request/response is complete. In these cases keep alive
+        // is disabled. See https://tools.ietf.org/html/rfc7230#section-6.6
+        if (mCloseConnection) {
+            names.add(HEADER_CONNECTION);
+            values.add(HEADER_CONNECTION_CLOSE);
+        }
+        // Add extra headers specified by mms_config.xml's httpparams, which is a list of
+        // key/value pairs separated by "|". Each key/value pair is separated by ":". Value may
+        // contain macros like "##LINE1##" or "##NAI##".
+        if (!TextUtils.isEmpty(mHttpParams)) {
+            for (String paramPair : mHttpParams.split("\\|")) {
+                final String[] splitPair = paramPair.split(":", 2);
+                if (splitPair.length == 2) {
+                    final String name = splitPair[0].trim();
+                    final String value = MmsHttpClient.resolveMacro(
+                            context, splitPair[1].trim(), mmsConfig, subId);
+                    if (!TextUtils.isEmpty(name) && !TextUtils.isEmpty(value)) {
+                        // Add the header if the param is valid
+                        names.add(name);
+                        values.add(value);
+                    }
+                }
+            }
+        }
+        mNames = names.toArray(new String[names.size()]);
+        mValues = values.toArray(new String[values.size()]);
+    }
+
+    private boolean matches(int configGeneration, int macroGeneration, Locale locale,
+            Bundle mmsConfig) {
+        return mConfigGeneration == configGeneration
+                && mMacroGeneration == macroGeneration
+                && mLocale.equals(locale)
+                && TextUtils.equals(mUserAgent,
+                        mmsConfig.getString(SmsManager.MMS_CONFIG_USER_AGENT))
+                && TextUtils.equals(mUaProfTagName,
+                        mmsConfig.getString(SmsManager.MMS_CONFIG_UA_PROF_TAG_NAME))
+                && TextUtils.equals(mUaProfUrl,
+                        mmsConfig.getString(SmsManager.MMS_CONFIG_UA_PROF_URL))
+                && mCloseConnection
+                        == mmsConfig.getBoolean(SmsManager.MMS_CONFIG_CLOSE_CONNECTION, false)
+                && TextUtils.equals(mHttpParams,
+                        mmsConfig.getString(SmsManager.MMS_CONFIG_HTTP_PARAMS))
+                && TextUtils.equals(mNaiSuffix,
+                        mmsConfig.getString(SmsManager.MMS_CONFIG_NAI_SUFFIX));
+    }
+
+    /**
+     * Set the headers on a connection
+     */
+    public void apply(HttpURLConnection connection) {
+        for (int i = 0; i < mNames.length; i++) {
+            connection.setRequestProperty(mNames[i], mValues[i]);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.util.ArrayMap;
+
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * Cache of the values of the HTTP param macros (##LINE1##, ##NAI##...) by subscription, which
+ * cost telephony lookups and phone number parsing to resolve.
+ *
+ * The values depend on the SIM and its line number, so the cache is cleared on subscription
+ * changes, which include line number updates, and on SIM state changes.
+ */
+public class MacroCache {
+    private static final MacroCache sInstance = new MacroCache();
+
+    public static MacroCache getInstance() {
+        return sInstance;
+    }
+
+    // Guards the fields below
+    private final Object mLock = new Object();
+    // Values by subId, macro and the config they depend on
+    private final Map<String, String> mEntries = new ArrayMap<>();
+    // Incremented on each invalidation, so that values built from macros can be invalidated too
+    private int mGeneration;
+    private long mHitCount;
+    private long mMissCount;
+    private int mInvalidationCount;
+
+    private MacroCache() {}
+
+    private static String getKey(int subId, String macro, String configValue) {
+        return subId + "/" + macro + (configValue != null ? ("/" + configValue) : "");
+    }
+
+    /**
+     * Look up a macro value
+     *
+     * @param subId       the subscription
+     * @param macro       the macro name
+     * @param configValue the config value the macro depends on, if any
+     * @return the cached value, empty if the macro has no value, or null if not cached
+     */
+    public String get(int subId, String macro, String configValue) {
+        synchronized (mLock) {
+            final String value = mEntries.get(getKey(subId, macro, configValue));
+            if (value == null) {
+                mMissCount++;
+            } else {
+                mHitCount++;
+            }
+            return value;
+        }
+    }
+
+    /**
+     * Cache a macro value
+     *
+     * @param generation the generation when the value was resolved, it is dropped if the cache
+     *                   has been invalidated since
+     */
+    public void put(int subId, String macro, String configValue, String value,
+            int generation) {
+        synchronized (mLock) {
+            if (generation == mGeneration) {
+                // A macro without value resolves to nothing, like an empty one
+                mEntries.put(getKey(subId, macro, configValue), value != null ? value : "");
+            }
+        }
+    }
+
+    public int getGeneration() {
+        synchronized (mLock) {
+            return mGeneration;
+        }
+    }
+
+    /**
+     * Drop all the values, e.g. because a subscription or its line number changed
+     */
+    public void invalidate() {
+        synchronized (mLock) {
+            mEntries.clear();
+            mGeneration++;
+            mInvalidationCount++;
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.println(prefix + "HTTP macro cache: entries=" + mEntries.size()
+                    + " hits=" + mHitCount
+                    + " misses=" + mMissCount
+                    + " invalidations=" + mInvalidationCount);
+        }
+    }
+}
@@ -23,20 +23,32 @@ import android.content.IntentFilter;
 import android.content.res.Configuration;
 import android.os.Bundle;
 import android.os.PersistableBundle;
+import android.os.SystemClock;
 import android.telephony.CarrierConfigManager;
 import android.telephony.SmsManager;
 import android.telephony.SubscriptionInfo;
 import android.telephony.SubscriptionManager;
 import android.telephony.SubscriptionManager.OnSubscriptionsChangedListener;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.SparseArray;
 
+import com.android.internal.telephony.PhoneConstants;
 import com.android.internal.telephony.TelephonyIntents;
 
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ExecutorService;
+import java.util.Set;
 import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class manages cached copies of all the MMS configuration for each subscription ID.
@@ -51,10 +63,89 @@ public class MmsConfigManager {
         return sInstance;
     }
 
-    // Map the various subIds to their corresponding MmsConfigs.
-    private final Map<Integer, Bundle> mSubIdConfigMap = new ArrayMap<Integer, Bundle>();
+    /*
+     * Carrier config keys tuning the MMS service itself. They are not part of the SmsManager
+     * MMS config, but when a carrier defines them they are passed along in the same bundle.
+     */
+    // Lower bound of the number of threads running requests in each queue
+    public static final String CONFIG_REQUEST_POOL_MIN_SIZE = "mmsRequestPoolMinSize";
+    // Upper bound of the number of threads running requests in each queue
+    public static final String CONFIG_REQUEST_POOL_MAX_SIZE = "mmsRequestPoolMaxSize";
+    // Maximum number of HTTP attempts of a request
+    public static final String CONFIG_RETRY_MAX_ATTEMPTS = "mmsRetryMaxAttempts";
+    // Delay before the first retry of a failed HTTP attempt
+    public static final String CONFIG_RETRY_INITIAL_DELAY_MILLIS = "mmsRetryInitialDelayMillis";
+    // Factor applied to the retry delay after each further failed attempt
+    public static final String CONFIG_RETRY_BACKOFF_FACTOR = "mmsRetryBackoffFactor";
+    // How long an idle HTTP connection to the MMSC is kept for reuse
+    public static final String CONFIG_HTTP_KEEP_ALIVE_MILLIS = "mmsHttpKeepAliveMillis";
+    // How long the resolved addresses of the MMSC and proxy hosts are kept, 0 to disable
+    public static final String CONFIG_DNS_CACHE_TTL_MILLIS = "mmsDnsCacheTtlMillis";
+    // Upper bound of how long the MMS network is kept after its last request, 0 to disable
+    public static final String CONFIG_NETWORK_LINGER_MAX_MILLIS = "mmsNetworkLingerMaxMillis";
+
+    // Subscription and carrier config events arrive in bursts during boot and SIM swaps, a
+    // reload waits this long after the first event so that the whole burst is loaded at once
+    private static final long RELOAD_DEBOUNCE_MILLIS = 500;
+
+    private static final String[] SERVICE_CONFIG_INT_KEYS = {
+            CONFIG_REQUEST_POOL_MIN_SIZE,
+            CONFIG_REQUEST_POOL_MAX_SIZE,
+            CONFIG_RETRY_MAX_ATTEMPTS,
+            CONFIG_RETRY_INITIAL_DELAY_MILLIS,
+            CONFIG_RETRY_BACKOFF_FACTOR,
+            CONFIG_HTTP_KEEP_ALIVE_MILLIS,
+            CONFIG_DNS_CACHE_TTL_MILLIS,
+            CONFIG_NETWORK_LINGER_MAX_MILLIS,
+    };
+
+    /**
+     * The MMS configs of a load, never modified once published
+     */
+    private static final class ConfigSnapshot {
+        // Incremented each time the config is reloaded, e.g. on SIM or carrier config change
+        final int mGeneration;
+        // Map the various subIds to their corresponding MmsConfigs.
+        final Map<Integer, Bundle> mConfigs;
+        // The configs with the user agent values merged in, by subId, resolved on first use.
+        // Guarded by itself.
+        final SparseArray<Bundle> mResolvedConfigs = new SparseArray<>();
+
+        ConfigSnapshot(int generation, Map<Integer, Bundle> configs) {
+            mGeneration = generation;
+            mConfigs = Collections.unmodifiableMap(configs);
+        }
+    }
+
+    // The current configs, replaced as a whole on each load so that readers never see a
+    // partially loaded map
+    private volatile ConfigSnapshot mSnapshot =
+            new ConfigSnapshot(0, new ArrayMap<Integer, Bundle>());
     private Context mContext;
     private SubscriptionManager mSubscriptionManager;
+    // Guards the fields below
+    private final Object mLoadLock = new Object();
+    // Whether the config has been loaded once
+    private boolean mLoaded;
+    // Tasks waiting for the first load
+    private final List<Runnable> mLoadedCallbacks = new ArrayList<>();
+    // Whether a reload is scheduled and has not started yet
+    private boolean mReloadScheduled;
+    // Whether the scheduled reload refetches the config of all the subscriptions
+    private boolean mReloadAll;
+    // Subscriptions whose config the scheduled reload refetches even if they didn't change
+    private final Set<Integer> mDirtySubIds = new ArraySet<>();
+    // Reload statistics
+    private int mReloadRequestCount;
+    private int mReloadCount;
+    private int mUnchangedReloadCount;
+    private long mFetchCount;
+    private long mReloadTotalMillis;
+    private long mReloadMaxMillis;
+
+    // The identity of each subscription at the last load, so that a reload can tell which
+    // subscriptions changed. Only accessed by the loads.
+    private final Map<Integer, String> mSubIdentities = new ArrayMap<>();
 
     /**
      * This receiver listens for changes made to SubInfoRecords and for a broadcast telling us
@@ -69,7 +160,14 @@ public class MmsConfigManager {
             LogUtil.i("MmsConfigManager receiver action: " + action);
             if (action.equals(TelephonyIntents.ACTION_SIM_STATE_CHANGED) ||
                     action.equals(CarrierConfigManager.ACTION_CARRIER_CONFIG_CHANGED)) {
-                loadInBackground();
+                MacroCache.getInstance().invalidate();
+                // The new config of the subscription has to be fetched even if the
+                // subscription itself didn't change
+                final String subIdKey = action.equals(TelephonyIntents.ACTION_SIM_STATE_CHANGED)
+                        ? PhoneConstants.SUBSCRIPTION_KEY
+                        : CarrierConfigManager.EXTRA_SUBSCRIPTION_INDEX;
+                loadInBackground(intent.getIntExtra(subIdKey,
+                        SubscriptionManager.INVALID_SUBSCRIPTION_ID));
             }
         }
     };
@@ -78,6 +176,8 @@ public class MmsConfigManager {
             new OnSubscriptionsChangedListener() {
         @Override
         public void onSubscriptionsChanged() {
+            // Also reported when the line number of a subscription changes
+            MacroCache.getInstance().invalidate();
             loadInBackground();
         }
     };
@@ -104,9 +204,37 @@ public class MmsConfigManager {
                 mOnSubscriptionsChangedListener);
     }
 
-    private ExecutorService executorService = Executors.newSingleThreadExecutor();//by bug 1225420
+    private ScheduledExecutorService executorService =
+            Executors.newSingleThreadScheduledExecutor();//by bug 1225420
+
+    /**
+     * Reload the config of a subscription whose carrier config changed
+     *
+     * @param subId the subscription, or an invalid subId to reload all of them
+     */
+    private void loadInBackground(int subId) {
+        synchronized(mLoadLock) {
+            if (SubscriptionManager.isValidSubscriptionId(subId)) {
+                mDirtySubIds.add(subId);
+            } else {
+                mReloadAll = true;
+            }
+        }
+        loadInBackground();
+    }
 
+    /**
+     * Reload the config of the subscriptions which were added or changed. Requests are
+     * coalesced until the reload starts.
+     */
     private void loadInBackground() {
+        synchronized(mLoadLock) {
+            mReloadRequestCount++;
+            if (mReloadScheduled) {
+                return;
+            }
+            mReloadScheduled = true;
+        }
         // TODO (ywen) - AsyncTask to avoid creating a new thread?
         /*
         new Thread() {
@@ -129,12 +257,25 @@ public class MmsConfigManager {
                 // was loaded.
                 LogUtil.i("MmsConfigManager loads in background mcc/mnc: " +
                         configuration.mcc + "/" + configuration.mnc);
-                load(mContext);
+                final boolean reloadAll;
+                final Set<Integer> dirtySubIds;
+                synchronized(mLoadLock) {
+                    // Events from now on schedule another reload
+                    mReloadScheduled = false;
+                    reloadAll = mReloadAll;
+                    mReloadAll = false;
+                    dirtySubIds = new ArraySet<>(mDirtySubIds);
+                    mDirtySubIds.clear();
+                }
+                load(mContext, reloadAll, dirtySubIds);
             }
         };
         try {//by bug 1225420
-            executorService.execute(runnable);
+            executorService.schedule(runnable, RELOAD_DEBOUNCE_MILLIS, TimeUnit.MILLISECONDS);
         } catch (RejectedExecutionException | NullPointerException e) {
+            synchronized(mLoadLock) {
+                mReloadScheduled = false;
+            }
             e.printStackTrace();
         }
     }
@@ -149,10 +290,7 @@ public class MmsConfigManager {
      *         thread after a recent LISTEN_SUBSCRIPTION_INFO_LIST_CHANGED event.
      */
     public Bundle getMmsConfigBySubId(int subId) {
-        Bundle mmsConfig;
-        synchronized(mSubIdConfigMap) {
-            mmsConfig = mSubIdConfigMap.get(subId);
-        }
+        final Bundle mmsConfig = mSnapshot.mConfigs.get(subId);
         LogUtil.i("mms config for sub " + subId + ": " + mmsConfig);
         // Return a copy so that callers can mutate it.
         if (mmsConfig != null) {
@@ -161,32 +299,202 @@ public class MmsConfigManager {
         return null;
     }
 
+    /**
+     * Get the MMS config of a subscription with the user agent and user agent profile URL of
+     * the subscription merged in, as used by the requests. It is resolved once per load of the
+     * config and shared, so unlike {@link #getMmsConfigBySubId(int)} the caller must not modify
+     * it, but copy it to apply its own overrides.
+     *
+     * @param subId the subscription
+     * @return the shared config, or null if not loaded
+     */
+    public Bundle getResolvedMmsConfig(int subId) {
+        final ConfigSnapshot snapshot = mSnapshot;
+        synchronized(snapshot.mResolvedConfigs) {
+            final Bundle resolved = snapshot.mResolvedConfigs.get(subId);
+            if (resolved != null) {
+                return resolved;
+            }
+        }
+        final Bundle config = snapshot.mConfigs.get(subId);
+        if (config == null) {
+            LogUtil.i("mms config for sub " + subId + ": null");
+            return null;
+        }
+        final Bundle resolved = new Bundle(config);
+        // TODO: Make MmsConfigManager authoritative for user agent and don't consult
+        // TelephonyManager.
+        final TelephonyManager telephonyManager = ((TelephonyManager) mContext
+                .getSystemService(Context.TELEPHONY_SERVICE))
+                .createForSubscriptionId(subId);
+        final String userAgent = telephonyManager.getMmsUserAgent();
+        if (!TextUtils.isEmpty(userAgent)) {
+            resolved.putString(SmsManager.MMS_CONFIG_USER_AGENT, userAgent);
+        }
+        final String userAgentProfileUrl = telephonyManager.getMmsUAProfUrl();
+        if (!TextUtils.isEmpty(userAgentProfileUrl)) {
+            resolved.putString(SmsManager.MMS_CONFIG_UA_PROF_URL, userAgentProfileUrl);
+        }
+        LogUtil.i("resolved mms config for sub " + subId + ": " + resolved);
+        // Cached with the configs it was resolved from, a reload drops it
+        synchronized(snapshot.mResolvedConfigs) {
+            snapshot.mResolvedConfigs.put(subId, resolved);
+        }
+        return resolved;
+    }
+
+    /**
+     * Get the MMS configs of all the active subscriptions, as loaded. Unlike
+     * {@link #getResolvedMmsConfig(int)} this makes no call to telephony, and the caller must not
+     * modify them.
+     *
+     * @return the configs, empty if not loaded
+     */
+    public Collection<Bundle> getLoadedMmsConfigs() {
+        return mSnapshot.mConfigs.values();
+    }
+
+    /**
+     * @return the generation of the loaded config, which changes when it is reloaded so that
+     *         values derived from it can be invalidated
+     */
+    public int getConfigGeneration() {
+        return mSnapshot.mGeneration;
+    }
+
+    /**
+     * Run a task once the MMS config has been loaded for the active subscriptions, or a load
+     * found none, right away if that already happened. Otherwise the task runs on the loading
+     * thread.
+     *
+     * @param task the task to run
+     */
+    public void runWhenLoaded(Runnable task) {
+        synchronized(mLoadLock) {
+            if (!mLoaded) {
+                mLoadedCallbacks.add(task);
+                return;
+            }
+        }
+        task.run();
+    }
+
+    /**
+     * @return what identifies the SIM and carrier of a subscription, its config is refetched
+     *         when this changes
+     */
+    private static String getSubIdentity(SubscriptionInfo sub) {
+        return sub.getIccId() + "/" + sub.getMcc() + "/" + sub.getMnc() + "/"
+                + sub.getSimSlotIndex();
+    }
+
     /**
      * This loads the MMS config for each active subscription.
      *
      * MMS config is fetched from CarrierConfigManager and filtered to only include MMS config
-     * variables. The resulting bundles are stored in mSubIdConfigMap.
+     * variables, for the subscriptions which are new, changed or dirty. The others keep their
+     * config of the last load. The resulting bundles are published as a new snapshot, unless
+     * nothing changed.
+     *
+     * @param reloadAll   whether to refetch the config of all the subscriptions
+     * @param dirtySubIds the subscriptions whose config to refetch even if they didn't change
      */
-    private void load(Context context) {
+    private void load(Context context, boolean reloadAll, Set<Integer> dirtySubIds) {
+        final long start = SystemClock.elapsedRealtime();
         List<SubscriptionInfo> subs = mSubscriptionManager.getActiveSubscriptionInfoList();
         if (subs == null || subs.size() < 1) {
             LogUtil.e(" Failed to load mms config: empty getActiveSubInfoList");
+            // Nothing more to wait for, e.g. there is no SIM
+            onLoadFinished();
             return;
         }
         // Load all the config bundles into a new map and then swap it with the real map to avoid
         // blocking.
+        final ConfigSnapshot current = mSnapshot;
         final Map<Integer, Bundle> newConfigMap = new ArrayMap<Integer, Bundle>();
+        final Map<Integer, String> newSubIdentities = new ArrayMap<Integer, String>();
         final CarrierConfigManager configManager =
                 (CarrierConfigManager) context.getSystemService(Context.CARRIER_CONFIG_SERVICE);
+        int fetchCount = 0;
         for (SubscriptionInfo sub : subs) {
             final int subId = sub.getSubscriptionId();
-            PersistableBundle config = configManager.getConfigForSubId(subId);
-            newConfigMap.put(subId, SmsManager.getMmsConfig(config));
+            final String identity = getSubIdentity(sub);
+            newSubIdentities.put(subId, identity);
+            Bundle mmsConfig = current.mConfigs.get(subId);
+            if (mmsConfig == null || reloadAll || dirtySubIds.contains(subId)
+                    || !identity.equals(mSubIdentities.get(subId))) {
+                PersistableBundle config = configManager.getConfigForSubId(subId);
+                mmsConfig = getMmsConfig(config);
+                fetchCount++;
+            }
+            newConfigMap.put(subId, mmsConfig);
+        }
+        mSubIdentities.clear();
+        mSubIdentities.putAll(newSubIdentities);
+        // Removed subscriptions change the snapshot too
+        final boolean changed = fetchCount > 0
+                || !newConfigMap.keySet().equals(current.mConfigs.keySet());
+        if (changed) {
+            // Loads run one at a time on executorService, so the generation can't go backwards
+            mSnapshot = new ConfigSnapshot(current.mGeneration + 1, newConfigMap);
+        }
+        final long duration = SystemClock.elapsedRealtime() - start;
+        LogUtil.i("MmsConfigManager loaded " + subs.size() + " subs, fetched " + fetchCount
+                + (changed ? "" : ", unchanged") + " in " + duration + "ms");
+        synchronized(mLoadLock) {
+            mReloadCount++;
+            if (!changed) {
+                mUnchangedReloadCount++;
+            }
+            mFetchCount += fetchCount;
+            mReloadTotalMillis += duration;
+            mReloadMaxMillis = Math.max(mReloadMaxMillis, duration);
+        }
+        onLoadFinished();
+    }
+
+    /**
+     * Mark the config loaded and run the tasks waiting for it
+     */
+    private void onLoadFinished() {
+        final List<Runnable> loadedCallbacks;
+        synchronized(mLoadLock) {
+            mLoaded = true;
+            loadedCallbacks = new ArrayList<>(mLoadedCallbacks);
+            mLoadedCallbacks.clear();
         }
-        synchronized(mSubIdConfigMap) {
-            mSubIdConfigMap.clear();
-            mSubIdConfigMap.putAll(newConfigMap);
+        for (Runnable task : loadedCallbacks) {
+            task.run();
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized(mLoadLock) {
+            pw.println(prefix + "MMS config: generation=" + mSnapshot.mGeneration
+                    + " reloadRequests=" + mReloadRequestCount
+                    + " reloads=" + mReloadCount
+                    + " unchanged=" + mUnchangedReloadCount
+                    + " fetches=" + mFetchCount
+                    + " avgReload=" + (mReloadCount > 0 ? mReloadTotalMillis / mReloadCount : 0)
+                    + "ms"
+                    + " maxReload=" + mReloadMaxMillis + "ms");
+        }
+    }
+
+    /**
+     * Filter the carrier config to the MMS config, plus the MMS service tuning keys the carrier
+     * has set.
+     */
+    private static Bundle getMmsConfig(PersistableBundle config) {
+        final Bundle mmsConfig = SmsManager.getMmsConfig(config);
+        if (config != null) {
+            for (String key : SERVICE_CONFIG_INT_KEYS) {
+                if (config.containsKey(key)) {
+                    mmsConfig.putInt(key, config.getInt(key));
+                }
+            }
         }
+        return mmsConfig;
     }
 
 }
@@ -20,7 +20,9 @@ import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.LinkProperties;
 import android.net.Network;
+import android.net.NetworkRequest;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.telephony.CarrierConfigManager;
 import android.telephony.SmsManager;
 import android.telephony.SubscriptionManager;
@@ -31,12 +33,11 @@ import android.util.Log;
 
 import com.android.mms.service.exception.MmsHttpException;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.Inet4Address;
@@ -45,14 +46,26 @@ import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.ProtocolException;
 import java.net.Proxy;
+import java.net.Socket;
 import java.net.URL;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import javax.net.SocketFactory;
 import com.android.mms.service.vowifi.ConnectivityManagerEx;
 import com.android.mms.service.vowifi.VowifiNetwork;
+import com.android.okhttp.internalandroidapi.Dns;
+import com.android.okhttp.internalandroidapi.HttpURLConnectionFactory;
 /**
  * MMS HTTP client for sending and downloading MMS messages
  */
@@ -61,32 +74,80 @@ public class MmsHttpClient {
     public static final String METHOD_GET = "GET";
 
     private static final String HEADER_CONTENT_TYPE = "Content-Type";
-    private static final String HEADER_ACCEPT = "Accept";
-    private static final String HEADER_ACCEPT_LANGUAGE = "Accept-Language";
-    private static final String HEADER_USER_AGENT = "User-Agent";
-    private static final String HEADER_CONNECTION = "Connection";
-
-    // The "Accept" header value
-    private static final String HEADER_VALUE_ACCEPT =
-            "*/*, application/vnd.wap.mms-message, application/vnd.wap.sic";
+
     // The "Content-Type" header value
     private static final String HEADER_VALUE_CONTENT_TYPE_WITH_CHARSET =
             "application/vnd.wap.mms-message; charset=utf-8";
     private static final String HEADER_VALUE_CONTENT_TYPE_WITHOUT_CHARSET =
             "application/vnd.wap.mms-message";
-    private static final String HEADER_CONNECTION_CLOSE = "close";
 
-    // Used for configs that specify a UA_PROF_URL, but not a name
-    private static final String UA_PROF_TAG_NAME_DEFAULT = "x-wap-profile";
+    // How long to wait for IPv4 to be provisioned when the MMSC is an IPv4 literal
+    private static final long IPV4_WAIT_TIMEOUT_MS = 15 * 1000;
+
+    // Statistics of the waits for IPv4, guarded by sIpv4WaitLock
+    private static final Object sIpv4WaitLock = new Object();
+    private static int sIpv4WaitCount;
+    private static int sIpv4WaitFailedCount;
+    private static long sIpv4WaitTotalMillis;
+    private static long sIpv4WaitMaxMillis;
 
-    private static final int IPV4_WAIT_ATTEMPTS = 15;
-    private static final long IPV4_WAIT_DELAY_MS = 1000; // 1 seconds
+    // Idle connections to the MMSC kept for reuse, unless the carrier overrides it with
+    // MmsConfigManager.CONFIG_HTTP_KEEP_ALIVE_MILLIS
+    public static final long DEFAULT_KEEP_ALIVE_MILLIS = 30 * 1000;
+    private static final int MAX_IDLE_CONNECTIONS = 2;
 
     private final Context mContext;
     private final Network mNetwork;
+    // Opens connections with a pool private to this client, so it lives as long as the client
+    // of the MMS network
+    private final HttpURLConnectionFactory mConnectionFactory;
+    // Addresses of the MMSC and proxy hosts resolved on the network of the client
+    private final DnsCache mDnsCache;
     private final ConnectivityManager mConnectivityManager;
     private final VowifiNetwork mNetworkVowifi;
     private final ConnectivityManagerEx mConnectivityManagerEx;
+    // Every socket opened by the client, pooled or in use, guarded by itself
+    private final Set<Socket> mSockets =
+            Collections.newSetFromMap(new WeakHashMap<Socket, Boolean>());
+    // The same instance for all the connections, since the pool only reuses a connection for
+    // the same socket factory
+    private final SocketFactory mSocketFactory;
+
+    /**
+     * Body of a POST request, written straight to the connection
+     */
+    public interface RequestBody {
+        /**
+         * @return the length of the body in bytes
+         */
+        int getLength();
+
+        /**
+         * Write the whole body
+         *
+         * @param out the request stream of the connection
+         * @throws IOException if the body can't be read or written
+         */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    static class ByteArrayRequestBody implements RequestBody {
+        private final byte[] mData;
+
+        ByteArrayRequestBody(byte[] data) {
+            mData = data;
+        }
+
+        @Override
+        public int getLength() {
+            return mData.length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(mData);
+        }
+    }
 
     /**
      * Constructor
@@ -96,6 +157,21 @@ public class MmsHttpClient {
      */
     public MmsHttpClient(Context context, Network network,
             ConnectivityManager connectivityManager) {
+        this(context, network, connectivityManager, DEFAULT_KEEP_ALIVE_MILLIS,
+                DnsCache.DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param context           The Context object
+     * @param network           The Network for creating an OKHttp client
+     * @param keepAliveMillis   How long idle connections are kept for reuse
+     * @param dnsCacheTtlMillis How long resolved host addresses are kept
+     */
+    public MmsHttpClient(Context context, Network network,
+            ConnectivityManager connectivityManager, long keepAliveMillis,
+            long dnsCacheTtlMillis) {
         mContext = context;
         // Mms server is on a carrier private network so it may not be resolvable using 3rd party
         // private dns
@@ -103,7 +179,35 @@ public class MmsHttpClient {
 		mNetworkVowifi = null;
         mConnectivityManagerEx = null;
         mConnectivityManager = connectivityManager;
+        final Network dnsNetwork = mNetwork;
+        mDnsCache = new DnsCache(dnsCacheTtlMillis, new DnsCache.Resolver() {
+            @Override
+            public InetAddress[] resolve(String host) throws UnknownHostException {
+                return dnsNetwork.getAllByName(host);
+            }
+        });
+        mConnectionFactory = createConnectionFactory(mDnsCache, keepAliveMillis);
+        mSocketFactory = new TrackingSocketFactory(mNetwork.getSocketFactory());
+    }
+
+    private static HttpURLConnectionFactory createConnectionFactory(final DnsCache dnsCache,
+            long keepAliveMillis) {
+        final HttpURLConnectionFactory factory = new HttpURLConnectionFactory();
+        factory.setDns(createDns(dnsCache));
+        factory.setNewConnectionPool(keepAliveMillis > 0 ? MAX_IDLE_CONNECTIONS : 0,
+                Math.max(keepAliveMillis, 1), TimeUnit.MILLISECONDS);
+        return factory;
+    }
+
+    private static Dns createDns(final DnsCache dnsCache) {
+        return new Dns() {
+            @Override
+            public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+                return Arrays.asList(dnsCache.lookup(hostname));
+            }
+        };
     }
+
     /**
      * Constructor
      *  @param context The Context object
@@ -112,11 +216,114 @@ public class MmsHttpClient {
      */
     public MmsHttpClient(Context context,
         VowifiNetwork vowifiNetwork,ConnectivityManagerEx connectivityManagerEx) {
+        this(context, vowifiNetwork, connectivityManagerEx, DnsCache.DEFAULT_TTL_MILLIS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param context           The Context object
+     * @param vowifiNetwork     The VoWiFi network of the requests
+     * @param dnsCacheTtlMillis How long resolved host addresses are kept
+     */
+    public MmsHttpClient(Context context, final VowifiNetwork vowifiNetwork,
+            ConnectivityManagerEx connectivityManagerEx, long dnsCacheTtlMillis) {
         mContext = context;
         mNetworkVowifi = vowifiNetwork;
         mConnectivityManagerEx = connectivityManagerEx;
         mNetwork = null;
         mConnectivityManager = null;
+        // VowifiNetwork has its own pool
+        mConnectionFactory = null;
+        mDnsCache = new DnsCache(dnsCacheTtlMillis, new DnsCache.Resolver() {
+            @Override
+            public InetAddress[] resolve(String host) throws UnknownHostException {
+                final InetAddress[] addresses = vowifiNetwork.getAllByName(host);
+                if (addresses == null) {
+                    throw new UnknownHostException(host);
+                }
+                return addresses;
+            }
+        });
+        // The connections of the network resolve the MMSC through the cache too
+        vowifiNetwork.setDns(createDns(mDnsCache));
+        mSocketFactory = new TrackingSocketFactory(vowifiNetwork.getSocketFactory());
+    }
+
+    /**
+     * Drop the resolved host addresses, e.g. because the network is lost
+     */
+    public void flushDnsCache() {
+        mDnsCache.flush();
+    }
+
+    /**
+     * Close the connections of the client, including the idle ones of its pool, when the client
+     * is discarded. The pool isn't reachable through the connection factory, so the sockets are
+     * tracked as they are created.
+     */
+    public void evictConnections() {
+        final List<Socket> sockets;
+        synchronized (mSockets) {
+            sockets = new ArrayList<>(mSockets);
+            mSockets.clear();
+        }
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Ignore
+            }
+        }
+        if (!sockets.isEmpty()) {
+            LogUtil.d("HTTP: evicted " + sockets.size() + " connections");
+        }
+    }
+
+    private Socket trackSocket(Socket socket) {
+        synchronized (mSockets) {
+            mSockets.add(socket);
+        }
+        return socket;
+    }
+
+    /**
+     * Creates the sockets of the client with the factory of its network, tracking them so that
+     * {@link #evictConnections()} can close them
+     */
+    private final class TrackingSocketFactory extends SocketFactory {
+        private final SocketFactory mDelegate;
+
+        TrackingSocketFactory(SocketFactory delegate) {
+            mDelegate = delegate;
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return trackSocket(mDelegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return trackSocket(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
+                throws IOException {
+            return trackSocket(mDelegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return trackSocket(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
+                int localPort) throws IOException {
+            return trackSocket(mDelegate.createSocket(address, port, localAddress, localPort));
+        }
     }
 
     /**
@@ -138,21 +345,52 @@ public class MmsHttpClient {
     public byte[] execute(String urlString, byte[] pdu, String method, boolean isProxySet,
             String proxyHost, int proxyPort, Bundle mmsConfig, int subId, String requestId,boolean isVowifiConnected,boolean firstTry)
             throws MmsHttpException {
+        return execute(urlString, pdu != null ? new ByteArrayRequestBody(pdu) : null, method,
+                isProxySet, proxyHost, proxyPort, mmsConfig, subId, requestId,
+                isVowifiConnected, firstTry);
+    }
+
+    /**
+     * Execute an MMS HTTP request whose body is streamed to the connection, see
+     * {@link #execute(String, byte[], String, boolean, String, int, Bundle, int, String,
+     * boolean, boolean)}
+     *
+     * @param body For POST (sending) only, the PDU to send
+     */
+    public byte[] execute(String urlString, RequestBody body, String method, boolean isProxySet,
+            String proxyHost, int proxyPort, Bundle mmsConfig, int subId, String requestId,
+            boolean isVowifiConnected, boolean firstTry) throws MmsHttpException {
+        final ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
+        executeToStream(urlString, body, method, isProxySet, proxyHost, proxyPort, mmsConfig,
+                subId, requestId, isVowifiConnected, firstTry, byteOut);
+        return byteOut.toByteArray();
+    }
+
+    /**
+     * Execute an MMS HTTP request and write the response body to a stream as it arrives,
+     * instead of holding it in memory, see {@link #execute(String, RequestBody, String,
+     * boolean, String, int, Bundle, int, String, boolean, boolean)}
+     *
+     * @param responseOut The stream receiving the response body, not closed
+     * @return The size of the response body
+     */
+    public long executeToStream(String urlString, RequestBody body, String method,
+            boolean isProxySet, String proxyHost, int proxyPort, Bundle mmsConfig, int subId,
+            String requestId, boolean isVowifiConnected, boolean firstTry,
+            OutputStream responseOut) throws MmsHttpException {
         LogUtil.d(requestId, "HTTP: " + method + " " + redactUrlForNonVerbose(urlString)
                 + (isProxySet ? (", proxy=" + proxyHost + ":" + proxyPort) : "")
-                + ", PDU size=" + (pdu != null ? pdu.length : 0));
+                + ", PDU size=" + (body != null ? body.getLength() : 0));
         checkMethod(method);
         HttpURLConnection connection = null;
+        // Whether the connection can go back to the pool once the response is read
+        boolean reusable = false;
         try {
             Proxy proxy = Proxy.NO_PROXY;
             if (isProxySet) {
-                if(isVowifiConnected && firstTry){
-                proxy = new Proxy(Proxy.Type.HTTP,
-                        new InetSocketAddress(mNetworkVowifi.getByName(proxyHost), proxyPort));
-                }else{
+                // The addresses come in the order of preference of the network
                 proxy = new Proxy(Proxy.Type.HTTP,
-                        new InetSocketAddress(mNetwork.getByName(proxyHost), proxyPort));
-                }
+                        new InetSocketAddress(mDnsCache.lookup(proxyHost)[0], proxyPort));
             }
             final URL url = new URL(urlString);
             if(!(isVowifiConnected && firstTry)){
@@ -160,9 +398,11 @@ public class MmsHttpClient {
             }
             // Now get the connection
             if(isVowifiConnected && firstTry){
-            	connection = (HttpURLConnection) mNetworkVowifi.openConnection(url, proxy);
+            	connection = (HttpURLConnection) mNetworkVowifi.openConnection(url,
+                        mSocketFactory, proxy);
             }else{
-            	connection = (HttpURLConnection) mNetwork.openConnection(url, proxy);
+            	connection = (HttpURLConnection) mConnectionFactory.openConnection(
+                        url, mSocketFactory, proxy);
             }
             connection.setDoInput(true);
             connection.setConnectTimeout(
@@ -170,43 +410,14 @@ public class MmsHttpClient {
             connection.setReadTimeout(
                     mmsConfig.getInt(SmsManager.MMS_CONFIG_HTTP_SOCKET_TIMEOUT));
             // ------- COMMON HEADERS ---------
-            // Header: Accept
-            connection.setRequestProperty(HEADER_ACCEPT, HEADER_VALUE_ACCEPT);
-            // Header: Accept-Language
-            connection.setRequestProperty(
-                    HEADER_ACCEPT_LANGUAGE, getCurrentAcceptLanguage(Locale.getDefault()));
-            // Header: User-Agent
-            final String userAgent = mmsConfig.getString(SmsManager.MMS_CONFIG_USER_AGENT);
-            LogUtil.i(requestId, "HTTP: User-Agent=" + userAgent);
-            connection.setRequestProperty(HEADER_USER_AGENT, userAgent);
-            // Header: x-wap-profile
-            String uaProfUrlTagName =
-                    mmsConfig.getString(SmsManager.MMS_CONFIG_UA_PROF_TAG_NAME);
-            final String uaProfUrl = mmsConfig.getString(SmsManager.MMS_CONFIG_UA_PROF_URL);
-
-            if (!TextUtils.isEmpty(uaProfUrl)) {
-                if (TextUtils.isEmpty(uaProfUrlTagName)) {
-                    uaProfUrlTagName = UA_PROF_TAG_NAME_DEFAULT;
-                }
-
-                LogUtil.i(requestId,
-                        "HTTP: UaProfUrl=" + uaProfUrl + ", UaProfUrlTagName=" + uaProfUrlTagName);
-
-                connection.setRequestProperty(uaProfUrlTagName, uaProfUrl);
-            }
-            // Header: Connection: close (if needed)
-            // Some carriers require that the HTTP connection's socket is closed
-            // after an MMS request/response is complete. In these cases keep alive
-            // is disabled. See https://tools.ietf.org/html/rfc7230#section-6.6
-            if (mmsConfig.getBoolean(SmsManager.MMS_CONFIG_CLOSE_CONNECTION, false)) {
-                LogUtil.i(requestId, "HTTP: Connection close after request");
-                connection.setRequestProperty(HEADER_CONNECTION, HEADER_CONNECTION_CLOSE);
-            }
-            // Add extra headers specified by mms_config.xml's httpparams
-            addExtraHeaders(connection, mmsConfig, subId);
+            // Accept, Accept-Language, User-Agent, x-wap-profile, Connection and the extra
+            // headers specified by mms_config.xml's httpparams
+            HttpHeaderTemplate.get(mContext, mmsConfig, subId, requestId).apply(connection);
+            final boolean closeConnection =
+                    mmsConfig.getBoolean(SmsManager.MMS_CONFIG_CLOSE_CONNECTION, false);
             // Different stuff for GET and POST
             if (METHOD_POST.equals(method)) {
-                if (pdu == null || pdu.length < 1) {
+                if (body == null || body.getLength() < 1) {
                     LogUtil.e(requestId, "HTTP: empty pdu");
                     throw new MmsHttpException(0/*statusCode*/, "Sending empty PDU");
                 }
@@ -222,12 +433,10 @@ public class MmsHttpClient {
                 if (LogUtil.isLoggable(Log.VERBOSE)) {
                     logHttpHeaders(connection.getRequestProperties(), requestId);
                 }
-                connection.setFixedLengthStreamingMode(pdu.length);
+                connection.setFixedLengthStreamingMode(body.getLength());
                 // Sending request body
-                final OutputStream out =
-                        new BufferedOutputStream(connection.getOutputStream());
-                out.write(pdu);
-                out.flush();
+                final OutputStream out = connection.getOutputStream();
+                body.writeTo(out);
                 out.close();
             } else if (METHOD_GET.equals(method)) {
                 if (LogUtil.isLoggable(Log.VERBOSE)) {
@@ -245,18 +454,23 @@ public class MmsHttpClient {
             if (responseCode / 100 != 2) {
                 throw new MmsHttpException(responseCode, responseMessage);
             }
-            final InputStream in = new BufferedInputStream(connection.getInputStream());
-            final ByteArrayOutputStream byteOut = new ByteArrayOutputStream();
-            final byte[] buf = new byte[4096];
-            int count = 0;
-            while ((count = in.read(buf)) > 0) {
-                byteOut.write(buf, 0, count);
+            final InputStream in = connection.getInputStream();
+            final byte[] buf = PduStreams.acquireBuffer();
+            long responseSize = 0;
+            try {
+                int count = 0;
+                while ((count = in.read(buf)) > 0) {
+                    responseOut.write(buf, 0, count);
+                    responseSize += count;
+                }
+            } finally {
+                PduStreams.releaseBuffer(buf);
+                in.close();
             }
-            in.close();
-            final byte[] responseBody = byteOut.toByteArray();
-            LogUtil.d(requestId, "HTTP: response size="
-                    + (responseBody != null ? responseBody.length : 0));
-            return responseBody;
+            LogUtil.d(requestId, "HTTP: response size=" + responseSize);
+            // The response has been fully read, the connection can be reused
+            reusable = !closeConnection;
+            return responseSize;
         } catch (MalformedURLException e) {
             final String redactedUrl = redactUrlForNonVerbose(urlString);
             LogUtil.e(requestId, "HTTP: invalid URL " + redactedUrl, e);
@@ -269,7 +483,7 @@ public class MmsHttpClient {
             LogUtil.e(requestId, "HTTP: IO failure", e);
             throw new MmsHttpException(0/*statusCode*/, e);
         } finally {
-            if (connection != null) {
+            if (connection != null && !reusable) {
                 connection.disconnect();
             }
         }
@@ -288,27 +502,99 @@ public class MmsHttpClient {
             // Not an IPv4 address.
             return;
         }
-        for (int i = 0; i < IPV4_WAIT_ATTEMPTS; i++) {
-            final LinkProperties lp = mConnectivityManager.getLinkProperties(mNetwork);
-            if (lp != null) {
-                if (!lp.isReachable(ipv4Literal)) {
-                    LogUtil.w(requestId, "HTTP: IPv4 not yet provisioned");
-                    try {
-                        Thread.sleep(IPV4_WAIT_DELAY_MS);
-                    } catch (InterruptedException e) {
-                        // Ignore
-                    }
-                } else {
-                    LogUtil.i(requestId, "HTTP: IPv4 provisioned");
-                    break;
-                }
-            } else {
-                LogUtil.w(requestId, "HTTP: network disconnected, skip ipv4 check");
-                break;
+        final LinkProperties lp = mConnectivityManager.getLinkProperties(mNetwork);
+        if (lp == null) {
+            LogUtil.w(requestId, "HTTP: network disconnected, skip ipv4 check");
+            return;
+        }
+        if (lp.isReachable(ipv4Literal)) {
+            return;
+        }
+        LogUtil.w(requestId, "HTTP: IPv4 not yet provisioned");
+        // Woken up by the link properties changes of the network instead of polling them
+        final Ipv4Waiter waiter = new Ipv4Waiter(ipv4Literal);
+        final long start = SystemClock.elapsedRealtime();
+        boolean provisioned = false;
+        try {
+            mConnectivityManager.registerNetworkCallback(
+                    new NetworkRequest.Builder().clearCapabilities().build(), waiter);
+            try {
+                waiter.mDone.await(IPV4_WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // Ignore
+            } finally {
+                mConnectivityManager.unregisterNetworkCallback(waiter);
+            }
+            provisioned = waiter.mReachable;
+        } catch (RuntimeException e) {
+            LogUtil.e(requestId, "HTTP: failed to listen to link properties", e);
+        }
+        final long waitMillis = SystemClock.elapsedRealtime() - start;
+        if (provisioned) {
+            LogUtil.i(requestId, "HTTP: IPv4 provisioned after " + waitMillis + "ms");
+        } else if (waiter.mLost) {
+            LogUtil.w(requestId, "HTTP: network disconnected, skip ipv4 check");
+        } else {
+            LogUtil.w(requestId, "HTTP: IPv4 still not provisioned after " + waitMillis + "ms");
+        }
+        synchronized (sIpv4WaitLock) {
+            sIpv4WaitCount++;
+            sIpv4WaitTotalMillis += waitMillis;
+            sIpv4WaitMaxMillis = Math.max(sIpv4WaitMaxMillis, waitMillis);
+            if (!provisioned) {
+                sIpv4WaitFailedCount++;
             }
         }
     }
 
+    /**
+     * Wait for an IPv4 address to become reachable on the MMS network
+     */
+    private final class Ipv4Waiter extends ConnectivityManager.NetworkCallback {
+        final Inet4Address mAddress;
+        final CountDownLatch mDone = new CountDownLatch(1);
+        volatile boolean mReachable;
+        volatile boolean mLost;
+
+        Ipv4Waiter(Inet4Address address) {
+            mAddress = address;
+        }
+
+        private boolean isMmsNetwork(Network network) {
+            return network.getNetworkHandle() == mNetwork.getNetworkHandle();
+        }
+
+        @Override
+        public void onLinkPropertiesChanged(Network network, LinkProperties lp) {
+            if (isMmsNetwork(network) && lp.isReachable(mAddress)) {
+                mReachable = true;
+                mDone.countDown();
+            }
+        }
+
+        @Override
+        public void onLost(Network network) {
+            if (isMmsNetwork(network)) {
+                mLost = true;
+                mDone.countDown();
+            }
+        }
+    }
+
+    /**
+     * Dump the statistics shared by all the clients
+     */
+    public static void dumpStats(PrintWriter pw, String prefix) {
+        synchronized (sIpv4WaitLock) {
+            pw.println(prefix + "IPv4 waits: count=" + sIpv4WaitCount
+                    + " failed=" + sIpv4WaitFailedCount
+                    + " avgWait=" + (sIpv4WaitCount > 0
+                            ? (sIpv4WaitTotalMillis / sIpv4WaitCount) : 0) + "ms"
+                    + " maxWait=" + sIpv4WaitMaxMillis + "ms");
+        }
+        DnsCache.dumpStats(pw, prefix);
+    }
+
     private static void logHttpHeaders(Map<String, List<String>> headers, String requestId) {
         final StringBuilder sb = new StringBuilder();
         if (headers != null) {
@@ -387,35 +673,6 @@ public class MmsHttpClient {
         }
     }
 
-    /**
-     * Add extra HTTP headers from mms_config.xml's httpParams, which is a list of key/value
-     * pairs separated by "|". Each key/value pair is separated by ":". Value may contain
-     * macros like "##LINE1##" or "##NAI##" which is resolved with methods in this class
-     *
-     * @param connection The HttpURLConnection that we add headers to
-     * @param mmsConfig  The MmsConfig object
-     * @param subId      The subscription ID used to get line number, etc.
-     */
-    private void addExtraHeaders(HttpURLConnection connection, Bundle mmsConfig, int subId) {
-        final String extraHttpParams = mmsConfig.getString(SmsManager.MMS_CONFIG_HTTP_PARAMS);
-        if (!TextUtils.isEmpty(extraHttpParams)) {
-            // Parse the parameter list
-            String paramList[] = extraHttpParams.split("\\|");
-            for (String paramPair : paramList) {
-                String splitPair[] = paramPair.split(":", 2);
-                if (splitPair.length == 2) {
-                    final String name = splitPair[0].trim();
-                    final String value =
-                            resolveMacro(mContext, splitPair[1].trim(), mmsConfig, subId);
-                    if (!TextUtils.isEmpty(name) && !TextUtils.isEmpty(value)) {
-                        // Add the header if the param is valid
-                        connection.setRequestProperty(name, value);
-                    }
-                }
-            }
-        }
-    }
-
     private static final Pattern MACRO_P = Pattern.compile("##(\\S+)##");
 
     /**
@@ -426,7 +683,7 @@ public class MmsHttpClient {
      * @param subId The subscription ID used to get line number, etc.
      * @return The HTTP param with macros resolved to real value
      */
-    private static String resolveMacro(Context context, String value, Bundle mmsConfig, int subId) {
+    static String resolveMacro(Context context, String value, Bundle mmsConfig, int subId) {
         if (TextUtils.isEmpty(value)) {
             return value;
         }
@@ -503,6 +760,22 @@ public class MmsHttpClient {
      */
     private static String getMacroValue(Context context, String macro, Bundle mmsConfig,
             int subId) {
+        final MacroCache cache = MacroCache.getInstance();
+        // The NAI depends on the configured suffix
+        final String configValue = MACRO_NAI.equals(macro)
+                ? mmsConfig.getString(SmsManager.MMS_CONFIG_NAI_SUFFIX) : null;
+        final String cachedValue = cache.get(subId, macro, configValue);
+        if (cachedValue != null) {
+            return cachedValue;
+        }
+        final int generation = cache.getGeneration();
+        final String value = resolveMacroValue(context, macro, mmsConfig, subId);
+        cache.put(subId, macro, configValue, value, generation);
+        return value;
+    }
+
+    private static String resolveMacroValue(Context context, String macro, Bundle mmsConfig,
+            int subId) {
         if (MACRO_LINE1.equals(macro)) {
             return getLine1(context, subId);
         } else if (MACRO_LINE1NOCOUNTRYCODE.equals(macro)) {
@@ -22,6 +22,7 @@ import android.net.Network;
 import android.net.NetworkCapabilities;
 import android.net.NetworkInfo;
 import android.net.NetworkRequest;
+import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.SystemClock;
@@ -35,8 +36,22 @@ import com.android.mms.service.vowifi.ConnectivityManagerEx;
 import com.android.mms.service.vowifi.VowifiNetwork;
 import com.android.mms.service.exception.MmsNetworkException;
 
+import java.io.PrintWriter;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
 /**
  * Manages the MMS network connectivity
+ *
+ * The cellular and the VoWiFi legs have separate state: the cellular one is guarded by this
+ * manager and the VoWiFi one by mLockEx. Requests acquire a leg through a future completed by the
+ * callbacks of that leg only.
  */
 public class MmsNetworkManager {
     // Timeout used to call ConnectivityManager.requestNetwork
@@ -46,11 +61,16 @@ public class MmsNetworkManager {
     // to make sure we don't bail prematurely
     private static final int NETWORK_ACQUIRE_TIMEOUT_MILLIS =
             NETWORK_REQUEST_TIMEOUT_MILLIS + (5 * 1000);
-    // Waiting time used before releasing a network prematurely. This allows the MMS download
-    // acknowledgement messages to be sent using the same network that was used to download the data
-    private static final int NETWORK_RELEASE_TIMEOUT_MILLIS = 5 * 1000;
+    // How long a network brought up ahead of its request is kept if no request acquires it
+    private static final int NETWORK_PREWARM_DEADLINE_MILLIS = 30 * 1000;
+
+    // Brings networks up ahead of their requests. Choosing the leg queries IMS and the VoWiFi
+    // provider, so it runs off the callers' threads.
+    private static final Executor sPrewarmExecutor = Executors.newSingleThreadExecutor();
 
     private final Context mContext;
+    // Guards the state of the VoWiFi leg
+    private final Object mLockEx = new Object();
     // add for Mms over wifi Begin
     private volatile ConnectivityManagerEx mConnectivityManagerEx;
     private VowifiNetwork mVowifiNetwork;
@@ -59,6 +79,10 @@ public class MmsNetworkManager {
     private int mMmsRequestCountEx;
     private final Runnable mNetworkReleaseTask;
     private ConnectivityManagerEx.VowifiNetworkCallback mwifiNetworkCallback;
+    // Completed when the requested wifi network is available, null if nobody waits for it
+    private CompletableFuture<VowifiNetwork> mVowifiNetworkFuture;
+    // Fails the wait for the wifi network when it takes too long
+    private final Runnable mWifiNetworkTimeoutTask;
     // add for Mms over wifi End
     // The requested MMS {@link android.net.Network} we are holding
     // We need this when we unbind from it. This is also used to indicate if the
@@ -71,6 +95,10 @@ public class MmsNetworkManager {
     private final NetworkRequest mNetworkRequest;
     // The callback to register when we request MMS network
     private ConnectivityManager.NetworkCallback mNetworkCallback;
+    // Completed when the requested network is available, null if nobody waits for it
+    private CompletableFuture<Network> mNetworkFuture;
+    // Fails the wait for the network when it takes too long
+    private final Runnable mNetworkTimeoutTask;
 
     private volatile ConnectivityManager mConnectivityManager;
 
@@ -83,6 +111,20 @@ public class MmsNetworkManager {
     // The task that does the delayed releasing of the network.
     private final Runnable mWifiNetworkReleaseTask;
 
+    // How long the networks are kept after their last request, and whether they are being kept
+    private final NetworkLingerPolicy mLingerPolicy = new NetworkLingerPolicy("cellular");
+    private final NetworkLingerPolicy mLingerPolicyEx = new NetworkLingerPolicy("vowifi");
+    private boolean mLingering;
+    private boolean mLingeringEx;
+    // Whether the networks were brought up ahead of their requests and are not used yet
+    private boolean mPrewarming;
+    private boolean mPrewarmingEx;
+    // Shared by both legs
+    private final AtomicInteger mPrewarmCount = new AtomicInteger();
+    private final AtomicInteger mPrewarmReadyCount = new AtomicInteger();
+    private final AtomicInteger mPrewarmUsedCount = new AtomicInteger();
+    private final AtomicInteger mPrewarmExpiredCount = new AtomicInteger();
+
     // The SIM ID which we use to connect
     private final int mSubId;
 
@@ -95,11 +137,20 @@ public class MmsNetworkManager {
             super.onAvailable(network);
             LogUtil.d("VowifiNetworkCallbackListener.onAvailable: network=" + network +
                                   ", mSubId=" + mSubId);
-            synchronized (MmsNetworkManager.this) {
-                if (mwifiNetworkCallback !=null) {
-                    mVowifiNetwork = network;
+            final CompletableFuture<VowifiNetwork> future;
+            synchronized (mLockEx) {
+                if (mwifiNetworkCallback == null) {
+                    return;
                 }
-                MmsNetworkManager.this.notifyAll();
+                mVowifiNetwork = network;
+                mLingerPolicyEx.onBringUpFinished(SystemClock.elapsedRealtime());
+                future = mVowifiNetworkFuture;
+                mVowifiNetworkFuture = null;
+                mReleaseHandler.removeCallbacks(mWifiNetworkTimeoutTask);
+            }
+            // Only the waiters of the wifi network
+            if (future != null) {
+                future.complete(network);
             }
         }
 
@@ -108,22 +159,24 @@ public class MmsNetworkManager {
             super.onLost(network);
             LogUtil.d("VowifiNetworkCallbackListener.onLost: network=" + network +
                                   ", mSubId=" + mSubId);
-            synchronized (MmsNetworkManager.this) {
-                MmsNetworkManager.this.notifyAll();
-                releaseRequestLockedEx(this);
+            final CompletableFuture<VowifiNetwork> future;
+            synchronized (mLockEx) {
+                future = releaseRequestLockedEx(this);
             }
+            failWaiters(future, "WifiNetwork request released");
         }
 
         @Override
         public void onUnavailable() {
             super.onUnavailable();
             LogUtil.d("VowifiNetworkCallbackListener.onUnavailable" + ", mSubId=" + mSubId);
-            synchronized (MmsNetworkManager.this) {
-                MmsNetworkManager.this.notifyAll();
-                releaseRequestLockedEx(this);
-                }
+            final CompletableFuture<VowifiNetwork> future;
+            synchronized (mLockEx) {
+                future = releaseRequestLockedEx(this);
             }
+            failWaiters(future, "WifiNetwork request released");
         }
+    }
 
     /**
      * Network callback for our network request
@@ -133,9 +186,17 @@ public class MmsNetworkManager {
         public void onAvailable(Network network) {
             super.onAvailable(network);
             LogUtil.i("NetworkCallbackListener.onAvailable: network=" + network);
+            final CompletableFuture<Network> future;
             synchronized (MmsNetworkManager.this) {
                 mNetwork = network;
-                MmsNetworkManager.this.notifyAll();
+                mLingerPolicy.onBringUpFinished(SystemClock.elapsedRealtime());
+                future = mNetworkFuture;
+                mNetworkFuture = null;
+                mReleaseHandler.removeCallbacks(mNetworkTimeoutTask);
+            }
+            // Only the waiters of the cellular network
+            if (future != null) {
+                future.complete(network);
             }
         }
 
@@ -143,20 +204,22 @@ public class MmsNetworkManager {
         public void onLost(Network network) {
             super.onLost(network);
             LogUtil.w("NetworkCallbackListener.onLost: network=" + network);
+            final CompletableFuture<Network> future;
             synchronized (MmsNetworkManager.this) {
-                releaseRequestLocked(this);
-                MmsNetworkManager.this.notifyAll();
+                future = releaseRequestLocked(this);
             }
+            failWaiters(future, "MMS network request released");
         }
 
         @Override
         public void onUnavailable() {
             super.onUnavailable();
             LogUtil.w("NetworkCallbackListener.onUnavailable");
+            final CompletableFuture<Network> future;
             synchronized (MmsNetworkManager.this) {
-                releaseRequestLocked(this);
-                MmsNetworkManager.this.notifyAll();
+                future = releaseRequestLocked(this);
             }
+            failWaiters(future, "MMS network request released");
         }
     }
 
@@ -188,23 +251,76 @@ public class MmsNetworkManager {
         mNetworkReleaseTask = new Runnable() {
             @Override
             public void run() {
-                synchronized (this) {
-                    if (mMmsRequestCount < 1) {
-                        releaseRequestLocked(mNetworkCallback);
+                CompletableFuture<Network> future = null;
+                synchronized (MmsNetworkManager.this) {
+                    if (mMmsRequestCount < 1 && (mLingering || mPrewarming)) {
+                        LogUtil.d("MmsNetworkManager: linger expired");
+                        if (mLingering) {
+                            mLingerPolicy.onLingerExpired();
+                        }
+                        if (mPrewarming) {
+                            mPrewarmExpiredCount.incrementAndGet();
+                        }
+                        future = releaseRequestLocked(mNetworkCallback);
+                    }
                 }
+                failWaiters(future, "MMS network request released");
             }
-        }
-    };
+        };
         mWifiNetworkReleaseTask = new Runnable() {
             @Override
             public void run() {
-                synchronized (this) {
-                    if (mMmsRequestCountEx < 1) {
-                        releaseRequestLockedEx(mwifiNetworkCallback);
+                CompletableFuture<VowifiNetwork> future = null;
+                synchronized (mLockEx) {
+                    if (mMmsRequestCountEx < 1 && (mLingeringEx || mPrewarmingEx)) {
+                        LogUtil.d("MmsNetworkManager: wifiNetwork linger expired");
+                        if (mLingeringEx) {
+                            mLingerPolicyEx.onLingerExpired();
+                        }
+                        if (mPrewarmingEx) {
+                            mPrewarmExpiredCount.incrementAndGet();
+                        }
+                        future = releaseRequestLockedEx(mwifiNetworkCallback);
+                    }
                 }
+                failWaiters(future, "WifiNetwork request released");
             }
-        }
-    };
+        };
+        mNetworkTimeoutTask = new Runnable() {
+            @Override
+            public void run() {
+                final CompletableFuture<Network> future;
+                synchronized (MmsNetworkManager.this) {
+                    future = mNetworkFuture;
+                    if (future == null) {
+                        return;
+                    }
+                    LogUtil.e("MmsNetworkManager: timed out");
+                    mNetworkFuture = null;
+                    // Release the network request and fail all the MmsRequests for fast-fail
+                    // together.
+                    // TODO: Start new network request for remaining MmsRequests?
+                    releaseRequestLocked(mNetworkCallback);
+                }
+                failWaiters(future, "Acquiring network timed out");
+            }
+        };
+        mWifiNetworkTimeoutTask = new Runnable() {
+            @Override
+            public void run() {
+                final CompletableFuture<VowifiNetwork> future;
+                synchronized (mLockEx) {
+                    future = mVowifiNetworkFuture;
+                    if (future == null) {
+                        return;
+                    }
+                    LogUtil.e("MmsNetworkManager: wifi timed out");
+                    mVowifiNetworkFuture = null;
+                    releaseRequestLockedEx(mwifiNetworkCallback);
+                }
+                failWaiters(future, "Acquiring WifiNetwork timed out");
+            }
+        };
     }
 
     /**
@@ -214,41 +330,63 @@ public class MmsNetworkManager {
      * @throws com.android.mms.service.exception.MmsNetworkException if we fail to acquire it
      */
     public void acquireNetworkEx(final String requestId) throws MmsNetworkException {
-        synchronized (this) {
+        final CompletableFuture<VowifiNetwork> future = acquireNetworkAsyncEx(requestId);
+        if (!waitForNetwork(requestId, future)) {
+            // Give back the network the future would have handed over
+            releaseNetworkEx(requestId, false /*isDownload*/, 0 /*pendingCount*/);
+            throw new MmsNetworkException("Acquiring WifiNetwork interrupted");
+        }
+    }
+
+    /**
+     * Acquire the MMS network of vowifi without waiting for it. The network must be released
+     * with {@link #releaseNetworkEx(String, boolean, int)} once the future has completed
+     * successfully.
+     *
+     * The future is completed from a network callback or a release, never with the state lock
+     * held.
+     *
+     * @param requestId request ID for logging
+     * @return the future network, failed with a MmsNetworkException if the network can't be
+     *         acquired
+     */
+    private CompletableFuture<VowifiNetwork> acquireNetworkAsyncEx(final String requestId) {
+        synchronized (mLockEx) {
             // Since we are acquiring the network, remove the network release task if exists.
             mReleaseHandler.removeCallbacks(mWifiNetworkReleaseTask);
             mMmsRequestCountEx += 1;
+            mLingerPolicyEx.onAcquire(SystemClock.elapsedRealtime());
+            if (mLingeringEx) {
+                mLingeringEx = false;
+                if (mVowifiNetwork != null) {
+                    mLingerPolicyEx.onLingerReused();
+                }
+            }
+            if (mPrewarmingEx) {
+                mPrewarmingEx = false;
+                onPrewarmUsed(mVowifiNetwork != null);
+            }
             if (mVowifiNetwork != null) {
                 // Already available
                 LogUtil.d(requestId, "MmsNetworkManager:  WifiNetwork already available");
-                return;
+                return CompletableFuture.completedFuture(mVowifiNetwork);
             }
             // Not available, so start a new request if not done yet
             if (mwifiNetworkCallback== null) {
                 LogUtil.d(requestId, "MmsNetworkManager: start new WifiNetwork request");
+                mLingerPolicyEx.onBringUpStarted(SystemClock.elapsedRealtime());
                 startNewNetworkRequestLockedEx();
             }
-            final long shouldEnd = SystemClock.elapsedRealtime() + NETWORK_ACQUIRE_TIMEOUT_MILLIS;
-            long waitTime = NETWORK_ACQUIRE_TIMEOUT_MILLIS;
-            while (waitTime > 0) {
-                try {
-                    this.wait(waitTime);
-                } catch (InterruptedException e) {
-                    LogUtil.w(requestId, "MmsNetworkManager: acquire WifiNetwork wait interrupted");
-                }
-                if (mVowifiNetwork != null) {
-                    // Success
-                    return;
-                }
-                // Calculate remaining waiting time to make sure we wait the full timeout period
-                waitTime = shouldEnd - SystemClock.elapsedRealtime();
-            }
-            // Timed out, so release the request and fail
-            LogUtil.e(requestId, "MmsNetworkManager: wifi timed out");
-            releaseRequestLockedEx(mwifiNetworkCallback);
-            throw new MmsNetworkException("Acquiring WifiNetwork timed out");
+            if (mVowifiNetworkFuture == null) {
+                mVowifiNetworkFuture = new CompletableFuture<>();
+                mReleaseHandler.postDelayed(mWifiNetworkTimeoutTask,
+                        NETWORK_ACQUIRE_TIMEOUT_MILLIS);
             }
-        } 
+            // A future of its own, so that the caller can't complete the shared one
+            return mVowifiNetworkFuture.thenApply(Function.<VowifiNetwork>identity());
+        }
+    }
+
     /**
      * Acquire the MMS network
      *
@@ -256,98 +394,241 @@ public class MmsNetworkManager {
      * @throws com.android.mms.service.exception.MmsNetworkException if we fail to acquire it
      */
     public void acquireNetwork(final String requestId) throws MmsNetworkException {
+        final CompletableFuture<Network> future = acquireNetworkAsync(requestId);
+        if (!waitForNetwork(requestId, future)) {
+            // Give back the network the future would have handed over
+            releaseNetwork(requestId, false /*isDownload*/, 0 /*pendingCount*/);
+            throw new MmsNetworkException("Acquiring network interrupted");
+        }
+    }
+
+    /**
+     * Acquire the MMS network without waiting for it. The network must be released with
+     * {@link #releaseNetwork(String, boolean, int)} once the future has completed successfully.
+     *
+     * The future is completed from a network callback or a release, never with the state lock
+     * held.
+     *
+     * @param requestId request ID for logging
+     * @return the future network, failed with a MmsNetworkException if the network can't be
+     *         acquired
+     */
+    private CompletableFuture<Network> acquireNetworkAsync(final String requestId) {
         synchronized (this) {
             // Since we are acquiring the network, remove the network release task if exists.
             mReleaseHandler.removeCallbacks(mNetworkReleaseTask);
             mMmsRequestCount += 1;
             LogUtil.d(requestId, "MmsNetworkManager: acquireNetwork"+mMmsRequestCount);
+            mLingerPolicy.onAcquire(SystemClock.elapsedRealtime());
+            if (mLingering) {
+                mLingering = false;
+                if (mNetwork != null) {
+                    mLingerPolicy.onLingerReused();
+                }
+            }
+            if (mPrewarming) {
+                mPrewarming = false;
+                onPrewarmUsed(mNetwork != null);
+            }
             if (mNetwork != null) {
                 // Already available
                 LogUtil.d(requestId, "MmsNetworkManager: already available");
-                return;
+                return CompletableFuture.completedFuture(mNetwork);
             }
             // Not available, so start a new request if not done yet
             if (mNetworkCallback == null) {
                 LogUtil.d(requestId, "MmsNetworkManager: start new network request");
+                mLingerPolicy.onBringUpStarted(SystemClock.elapsedRealtime());
                 startNewNetworkRequestLocked();
             }
-            try {
-                this.wait(NETWORK_ACQUIRE_TIMEOUT_MILLIS);
-            } catch (InterruptedException e) {
-                LogUtil.w(requestId, "MmsNetworkManager: acquire network wait interrupted");
+            if (mNetworkFuture == null) {
+                mNetworkFuture = new CompletableFuture<>();
+                mReleaseHandler.postDelayed(mNetworkTimeoutTask, NETWORK_ACQUIRE_TIMEOUT_MILLIS);
             }
-            if (mNetwork != null) {
-                // Success
-                return;
+            // A future of its own, so that the caller can't complete the shared one
+            return mNetworkFuture.thenApply(Function.<Network>identity());
+        }
+    }
+
+    /**
+     * Wait for an acquired network
+     *
+     * @return true if the network is available, false if the wait was interrupted or outlived
+     *         the acquisition timeout, in which case the network is still held
+     * @throws MmsNetworkException if the network can't be acquired
+     */
+    private static boolean waitForNetwork(String requestId, CompletableFuture<?> future)
+            throws MmsNetworkException {
+        try {
+            // The timeout task fails the future first, this only guards against a lost callback
+            future.get(NETWORK_ACQUIRE_TIMEOUT_MILLIS + 5 * 1000, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            LogUtil.w(requestId, "MmsNetworkManager: acquire network wait interrupted");
+            Thread.currentThread().interrupt();
+        } catch (TimeoutException e) {
+            LogUtil.e(requestId, "MmsNetworkManager: acquire network wait timed out");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MmsNetworkException) {
+                throw (MmsNetworkException) e.getCause();
             }
+            throw new MmsNetworkException("Acquiring network failed: " + e.getCause());
+        }
+        return false;
+    }
 
-            // Timed out
-            LogUtil.e(requestId, "MmsNetworkManager: timed out");
-            if (mNetworkCallback != null) {
-                // Release the network request and wake up all the MmsRequests for fast-fail
-                // together.
-                // TODO: Start new network request for remaining MmsRequests?
-                releaseRequestLocked(mNetworkCallback);
-                this.notifyAll();
+    /**
+     * Start bringing up the MMS network of a request which is about to run, so that the bring-up
+     * overlaps with the preparation of the request and its wait in the queue. The network is
+     * released if no request acquires it within {@link #NETWORK_PREWARM_DEADLINE_MILLIS}.
+     *
+     * The bring-up is skipped if the request has reached the network acquisition by the time
+     * it runs, since the request then brings the network up itself, or has even released it.
+     *
+     * @param request the request about to run
+     */
+    public void prewarmNetwork(final MmsRequest request) {
+        final String requestId = request.toString();
+        sPrewarmExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (request.isNetworkAcquireStarted()) {
+                    return;
+                }
+                // The same choice of network as MmsRequest.execute() for a first attempt
+                final boolean useVowifi = isVowifiSmsEnable(mSubId)
+                        && PhoneUtils.isOperatorSupport(mContext, mSubId);
+                // Checked again with the state locked, since the request acquires the network
+                // with it locked once it started to
+                if (useVowifi) {
+                    synchronized (mLockEx) {
+                        if (!request.isNetworkAcquireStarted()) {
+                            prewarmNetworkLockedEx(requestId);
+                        }
+                    }
+                } else {
+                    synchronized (MmsNetworkManager.this) {
+                        if (!request.isNetworkAcquireStarted()) {
+                            prewarmNetworkLocked(requestId);
+                        }
+                    }
+                }
             }
+        });
+    }
+
+    private void prewarmNetworkLocked(String requestId) {
+        if (mMmsRequestCount > 0 || mNetworkCallback != null) {
+            // Already in use, coming up or lingering
+            return;
+        }
+        LogUtil.d(requestId, "MmsNetworkManager: prewarm network");
+        mLingerPolicy.onBringUpStarted(SystemClock.elapsedRealtime());
+        startNewNetworkRequestLocked();
+        mPrewarming = true;
+        mPrewarmCount.incrementAndGet();
+        mReleaseHandler.removeCallbacks(mNetworkReleaseTask);
+        mReleaseHandler.postDelayed(mNetworkReleaseTask, NETWORK_PREWARM_DEADLINE_MILLIS);
+    }
 
-            throw new MmsNetworkException("Acquiring network timed out");
+    private void prewarmNetworkLockedEx(String requestId) {
+        if (mMmsRequestCountEx > 0 || mwifiNetworkCallback != null) {
+            // Already in use, coming up or lingering
+            return;
         }
+        LogUtil.d(requestId, "MmsNetworkManager: prewarm WifiNetwork");
+        mLingerPolicyEx.onBringUpStarted(SystemClock.elapsedRealtime());
+        startNewNetworkRequestLockedEx();
+        mPrewarmingEx = true;
+        mPrewarmCount.incrementAndGet();
+        mReleaseHandler.removeCallbacks(mWifiNetworkReleaseTask);
+        mReleaseHandler.postDelayed(mWifiNetworkReleaseTask, NETWORK_PREWARM_DEADLINE_MILLIS);
     }
 
     /**
-     * Release the MMS network when nobody is holding on to it.
+     * A request acquired a network brought up ahead of it
      *
-     * @param requestId request ID for logging
-     * @param shouldDelayRelease whether the release should be delayed for 5 seconds, the regular
-     *                           use case is to delay this for DownloadRequests to use the network
-     *                           for sending an acknowledgement on the same network
+     * @param ready whether the network was already up, hiding the whole bring-up
+     */
+    private void onPrewarmUsed(boolean ready) {
+        mPrewarmUsedCount.incrementAndGet();
+        if (ready) {
+            mPrewarmReadyCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Release the MMS network when nobody is holding on to it. The network lingers for a while
+     * when more requests are likely to need it soon, see {@link NetworkLingerPolicy}.
+     *
+     * @param requestId    request ID for logging
+     * @param isDownload   whether the request is a download, whose acknowledgement is sent next
+     * @param pendingCount the number of other requests of the subscription not finished yet,
+     *                     plus one when the releasing request will be retried
      */
-    public void releaseNetwork(final String requestId, final boolean shouldDelayRelease) {
+    public void releaseNetwork(final String requestId, final boolean isDownload,
+            final int pendingCount) {
+        CompletableFuture<Network> future = null;
         synchronized (this) {
             if (mMmsRequestCount > 0) {
                 mMmsRequestCount -= 1;
                 LogUtil.d(requestId, "MmsNetworkManager: release, count=" + mMmsRequestCount);
                 if (mMmsRequestCount < 1) {
-                    if (shouldDelayRelease) {
+                    final long lingerMillis = mLingerPolicy.getLingerMillis(
+                            SystemClock.elapsedRealtime(), isDownload, pendingCount,
+                            getMaxLingerMillis());
+                    if (lingerMillis > 0 && mNetworkCallback != null) {
+                        LogUtil.d(requestId, "MmsNetworkManager: linger " + lingerMillis + "ms");
                         // remove previously posted task and post a delayed task on the release
                         // handler to release the network
                         mReleaseHandler.removeCallbacks(mNetworkReleaseTask);
-                        mReleaseHandler.postDelayed(mNetworkReleaseTask,
-                                NETWORK_RELEASE_TIMEOUT_MILLIS);
+                        mReleaseHandler.postDelayed(mNetworkReleaseTask, lingerMillis);
+                        mLingering = true;
+                        mLingerPolicy.onLingerStarted(lingerMillis);
                     } else {
-                        releaseRequestLocked(mNetworkCallback);
+                        future = releaseRequestLocked(mNetworkCallback);
                     }
                 }
             }
         }
+        failWaiters(future, "MMS network request released");
     }
     /**
-     * Release the MMS network over wifi when nobody is holding on to it.
+     * Release the MMS network over wifi when nobody is holding on to it. The network lingers like
+     * the cellular one, see {@link #releaseNetwork(String, boolean, int)}.
      *
-     * @param requestId request ID for logging
-     * @param shouldDelayRelease whether the release should be delayed for 5 seconds, the regular
-     *                           use case is to delay this for DownloadRequests to use the network
-     *                           for sending an acknowledgement on the same network
+     * @param requestId    request ID for logging
+     * @param isDownload   whether the request is a download, whose acknowledgement is sent next
+     * @param pendingCount the number of other requests of the subscription not finished yet,
+     *                     plus one when the releasing request will be retried
      */
-    public void releaseNetworkEx(final String requestId, final boolean shouldDelayRelease) {
-        synchronized (this) {
+    public void releaseNetworkEx(final String requestId, final boolean isDownload,
+            final int pendingCount) {
+        CompletableFuture<VowifiNetwork> future = null;
+        synchronized (mLockEx) {
             if (mMmsRequestCountEx > 0) {
                 mMmsRequestCountEx -= 1;
                 LogUtil.d(requestId, "MmsNetworkManager:  wifiNetwork release, count=" + mMmsRequestCountEx);
                 if (mMmsRequestCountEx < 1) {
-                    if (shouldDelayRelease) {
+                    final long lingerMillis = mLingerPolicyEx.getLingerMillis(
+                            SystemClock.elapsedRealtime(), isDownload, pendingCount,
+                            getMaxLingerMillis());
+                    if (lingerMillis > 0 && mwifiNetworkCallback != null) {
+                        LogUtil.d(requestId, "MmsNetworkManager: wifiNetwork linger "
+                                + lingerMillis + "ms");
                         // remove previously posted task and post a delayed task on the release
                         // handler to release the network
                         mReleaseHandler.removeCallbacks(mWifiNetworkReleaseTask);
-                        mReleaseHandler.postDelayed(mWifiNetworkReleaseTask,
-                                NETWORK_RELEASE_TIMEOUT_MILLIS);
+                        mReleaseHandler.postDelayed(mWifiNetworkReleaseTask, lingerMillis);
+                        mLingeringEx = true;
+                        mLingerPolicyEx.onLingerStarted(lingerMillis);
                     } else {
-                        releaseRequestLockedEx(mwifiNetworkCallback);
+                        future = releaseRequestLockedEx(mwifiNetworkCallback);
                     }
                 }
             }
         }
+        failWaiters(future, "WifiNetwork request released");
     }
 
     /**
@@ -375,8 +656,11 @@ public class MmsNetworkManager {
      * Release the current {@link android.net.NetworkRequest} for MMS
      *
      * @param callback the {@link android.net.ConnectivityManager.NetworkCallback} to unregister
+     * @return the future of the requests waiting for the network, to fail with
+     *         {@link #failWaiters(CompletableFuture, String)} once the lock is released, or null
      */
-    private void releaseRequestLocked(ConnectivityManager.NetworkCallback callback) {
+    private CompletableFuture<Network> releaseRequestLocked(
+            ConnectivityManager.NetworkCallback callback) {
         if (callback != null) {
             final ConnectivityManager connectivityManager = getConnectivityManager();
             try {
@@ -392,14 +676,17 @@ public class MmsNetworkManager {
                 LogUtil.w("Unregister network callback exception", e);
             }
         }
-        resetLocked();
+        return resetLocked();
     }
     /**
      * Release the current {@link android.net.NetworkRequest} for MMS over wifi
      *
      * @param callback the {@link android.net.ConnectivityManager.NetworkCallback} to unregister
+     * @return the future of the requests waiting for the network, see
+     *         {@link #releaseRequestLocked(ConnectivityManager.NetworkCallback)}
      */
-    private void releaseRequestLockedEx(ConnectivityManagerEx.VowifiNetworkCallback callback) {
+    private CompletableFuture<VowifiNetwork> releaseRequestLockedEx(
+            ConnectivityManagerEx.VowifiNetworkCallback callback) {
         if (callback != null) {
             final ConnectivityManagerEx connectivityManagerEx = getConnectivityManagerEx();
             try {
@@ -415,25 +702,69 @@ public class MmsNetworkManager {
                 LogUtil.w("Unregister network callback exception", e);
             }
         }
-        resetLockedEx();
+        return resetLockedEx();
     }
     /**
      * Reset the state
+     *
+     * @return the future of the requests waiting for the network, or null
      */
-    private void resetLocked() {
+    private CompletableFuture<Network> resetLocked() {
+        mLingering = false;
+        mPrewarming = false;
+        // The waiters of this leg only
+        final CompletableFuture<Network> future = mNetworkFuture;
+        if (future != null) {
+            mReleaseHandler.removeCallbacks(mNetworkTimeoutTask);
+            mNetworkFuture = null;
+        }
+        mLingerPolicy.onBringUpAborted();
         mNetworkCallback = null;
         mNetwork = null;
         mMmsRequestCount = 0;
+        if (mMmsHttpClient != null) {
+            // Requests still holding the client must not use addresses of the lost network
+            mMmsHttpClient.flushDnsCache();
+            // Nor keep its idle connections open until their keep-alive expires
+            mMmsHttpClient.evictConnections();
+        }
         mMmsHttpClient = null;
+        return future;
     }
     /**
      * Reset the state
+     *
+     * @return the future of the requests waiting for the network, or null
      */
-    private void resetLockedEx() {
+    private CompletableFuture<VowifiNetwork> resetLockedEx() {
+        mLingeringEx = false;
+        mPrewarmingEx = false;
+        // The waiters of this leg only
+        final CompletableFuture<VowifiNetwork> future = mVowifiNetworkFuture;
+        if (future != null) {
+            mReleaseHandler.removeCallbacks(mWifiNetworkTimeoutTask);
+            mVowifiNetworkFuture = null;
+        }
+        mLingerPolicyEx.onBringUpAborted();
         mwifiNetworkCallback= null;
         mVowifiNetwork= null;
         mMmsRequestCountEx = 0;
+        if (mMmsHttpClientEx != null) {
+            mMmsHttpClientEx.flushDnsCache();
+            mMmsHttpClientEx.evictConnections();
+        }
         mMmsHttpClientEx = null;
+        return future;
+    }
+
+    /**
+     * Fail the requests waiting for a released network. Called without the state locks held,
+     * since completing the future runs the stages of the waiters.
+     */
+    private static void failWaiters(CompletableFuture<?> future, String message) {
+        if (future != null) {
+            future.completeExceptionally(new MmsNetworkException(message));
+        }
     }
 
     private ConnectivityManager getConnectivityManager() {
@@ -456,11 +787,12 @@ public class MmsNetworkManager {
      * @return The MmsHttpClient instance
      */
     public MmsHttpClient getOrCreateHttpClientEx() {
-        synchronized (this) {
+        synchronized (mLockEx) {
             if (mMmsHttpClientEx == null) {
                 if (mVowifiNetwork != null) {
                     // Create new MmsHttpClient for the current Network
-                    mMmsHttpClientEx = new MmsHttpClient(mContext, mVowifiNetwork, mConnectivityManagerEx);
+                    mMmsHttpClientEx = new MmsHttpClient(mContext, mVowifiNetwork,
+                            mConnectivityManagerEx, getDnsCacheTtlMillis());
                 }
             }
             return mMmsHttpClientEx;
@@ -476,13 +808,50 @@ public class MmsNetworkManager {
             if (mMmsHttpClient == null) {
                 if (mNetwork != null) {
                     // Create new MmsHttpClient for the current Network
-                    mMmsHttpClient = new MmsHttpClient(mContext, mNetwork, mConnectivityManager);
+                    mMmsHttpClient = new MmsHttpClient(mContext, mNetwork, mConnectivityManager,
+                            getHttpKeepAliveMillis(), getDnsCacheTtlMillis());
                 }
             }
             return mMmsHttpClient;
         }
     }
 
+    /**
+     * @return how long the HTTP client keeps idle connections, from the carrier config
+     */
+    private long getHttpKeepAliveMillis() {
+        final Bundle mmsConfig = MmsConfigManager.getInstance().getResolvedMmsConfig(mSubId);
+        if (mmsConfig == null) {
+            return MmsHttpClient.DEFAULT_KEEP_ALIVE_MILLIS;
+        }
+        return mmsConfig.getInt(MmsConfigManager.CONFIG_HTTP_KEEP_ALIVE_MILLIS,
+                (int) MmsHttpClient.DEFAULT_KEEP_ALIVE_MILLIS);
+    }
+
+    /**
+     * @return the upper bound of the network linger, from the carrier config
+     */
+    private long getMaxLingerMillis() {
+        final Bundle mmsConfig = MmsConfigManager.getInstance().getResolvedMmsConfig(mSubId);
+        if (mmsConfig == null) {
+            return NetworkLingerPolicy.DEFAULT_MAX_LINGER_MILLIS;
+        }
+        return mmsConfig.getInt(MmsConfigManager.CONFIG_NETWORK_LINGER_MAX_MILLIS,
+                (int) NetworkLingerPolicy.DEFAULT_MAX_LINGER_MILLIS);
+    }
+
+    /**
+     * @return how long the HTTP client keeps resolved host addresses, from the carrier config
+     */
+    private long getDnsCacheTtlMillis() {
+        final Bundle mmsConfig = MmsConfigManager.getInstance().getResolvedMmsConfig(mSubId);
+        if (mmsConfig == null) {
+            return DnsCache.DEFAULT_TTL_MILLIS;
+        }
+        return mmsConfig.getInt(MmsConfigManager.CONFIG_DNS_CACHE_TTL_MILLIS,
+                (int) DnsCache.DEFAULT_TTL_MILLIS);
+    }
+
     /**
      * Get the APN name for the active network
      *
@@ -505,6 +874,27 @@ public class MmsNetworkManager {
         return apnName;
     }
 
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (this) {
+            pw.println(prefix + "subId " + mSubId + ": requests=" + mMmsRequestCount
+                    + " network=" + (mNetwork != null)
+                    + " waiting=" + (mNetworkFuture != null)
+                    + " lingering=" + mLingering);
+            mLingerPolicy.dump(pw, prefix + "  ");
+        }
+        synchronized (mLockEx) {
+            pw.println(prefix + "  wifiRequests=" + mMmsRequestCountEx
+                    + " wifiNetwork=" + (mVowifiNetwork != null)
+                    + " wifiWaiting=" + (mVowifiNetworkFuture != null)
+                    + " wifiLingering=" + mLingeringEx);
+            mLingerPolicyEx.dump(pw, prefix + "  ");
+        }
+        pw.println(prefix + "  prewarms=" + mPrewarmCount.get()
+                + " used=" + mPrewarmUsedCount.get()
+                + " readyOnAcquire=" + mPrewarmReadyCount.get()
+                + " expired=" + mPrewarmExpiredCount.get());
+    }
+
     private boolean isVowifiConnected() {
         boolean isVowifiConnected = false;
         try {
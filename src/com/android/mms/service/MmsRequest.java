@@ -22,11 +22,10 @@ import android.content.Context;
 import android.content.Intent;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.service.carrier.CarrierMessagingService;
 import android.service.carrier.ICarrierMessagingCallback;
 import android.telephony.SmsManager;
-import android.telephony.TelephonyManager;
-import android.text.TextUtils;
 
 import com.android.mms.service.exception.ApnException;
 import com.android.mms.service.exception.MmsHttpException;
@@ -38,7 +37,21 @@ import com.android.mms.service.PhoneUtils;
  * Base class for MMS requests. This has the common logic of sending/downloading MMS.
  */
 public abstract class MmsRequest {
+    // Default retry policy of HTTP failures, carriers can override it with
+    // MmsConfigManager.CONFIG_RETRY_*
     private static final int RETRY_TIMES = 3;
+    private static final int RETRY_DELAY_MILLIS = 2 * 1000;
+    private static final int RETRY_BACKOFF_FACTOR = 2;
+
+    // Priority classes of requests waiting for a worker thread of their queue, lower values run
+    // first. Reports (acknowledgements, read reports) are sends of their creator, the service
+    // can't tell them apart before it reads their PDU.
+    // User initiated sends from the default SMS app
+    public static final int PRIORITY_INTERACTIVE = 0;
+    // Downloads of incoming messages
+    public static final int PRIORITY_DOWNLOAD = 1;
+    // Sends initiated by other apps in the background, e.g. bulk resends
+    public static final int PRIORITY_BACKGROUND = 2;
 
     /**
      * Interface for certain functionalities from MmsService
@@ -64,6 +77,20 @@ public abstract class MmsRequest {
          */
         public byte[] readPduFromContentUri(final Uri contentUri, final int maxSize);
 
+        /**
+         * Open the pdu file of the supplied content uri for reading
+         * @param contentUri content uri to open
+         * @return the file descriptor, owned by the caller (else null in case of error)
+         */
+        public ParcelFileDescriptor openPduFromContentUri(final Uri contentUri);
+
+        /**
+         * Open the pdu file of the supplied content uri for writing
+         * @param contentUri content uri to open
+         * @return the file descriptor, owned by the caller (else null in case of error)
+         */
+        public ParcelFileDescriptor openPduToContentUri(final Uri contentUri);
+
         /**
          * Write pdu to supplied content uri
          * @param contentUri content uri to which bytes should be written
@@ -71,6 +98,22 @@ public abstract class MmsRequest {
          * @return true in case of success (else false)
          */
         public boolean writePduToContentUri(final Uri contentUri, final byte[] pdu);
+
+        /**
+         * Execute the request again after a delay, keeping it as a running request meanwhile
+         * @param request the request to retry
+         * @param delayMillis the delay before executing the request again
+         * @return true if the retry is scheduled (else false)
+         */
+        public boolean scheduleRetry(MmsRequest request, long delayMillis);
+
+        /**
+         * Count the requests of a SIM which are not finished yet
+         *
+         * @param subId the SIM of the requests
+         * @return the number of running, retrying and queued requests of the SIM
+         */
+        public int getPendingRequestCount(int subId);
     }
 
     // The reference to the pending requests manager (i.e. the MmsService)
@@ -83,8 +126,19 @@ public abstract class MmsRequest {
     protected Bundle mMmsConfig;
     // MMS config overrides that will be applied to mMmsConfig when we eventually load it.
     protected Bundle mMmsConfigOverrides;
-    // Context used to get TelephonyManager.
+    // Context of the service
     protected Context mContext;
+    // The number of HTTP attempts made so far
+    private int mAttempt;
+    // The delay before the last scheduled retry
+    private long mRetryDelayMillis;
+    // The HTTP status of the attempt failed before the scheduled retry
+    private int mRetryHttpStatusCode;
+    // The ID of the request in the request journal, 0 if not journaled
+    private long mJournalId;
+    // Whether the request has started acquiring the MMS network, or failed before it, after
+    // which bringing the network up ahead of it is pointless
+    private volatile boolean mNetworkAcquireStarted;
 
     /* SRPD: Add for Commlog feature @{ */
     private static final int MMS_EXCEPTION = 1;
@@ -107,28 +161,29 @@ public abstract class MmsRequest {
         return mSubId;
     }
 
+    long getJournalId() {
+        return mJournalId;
+    }
+
+    void setJournalId(long journalId) {
+        mJournalId = journalId;
+    }
+
+    boolean isNetworkAcquireStarted() {
+        return mNetworkAcquireStarted;
+    }
+
     private boolean ensureMmsConfigLoaded() {
         if (mMmsConfig == null) {
             // Not yet retrieved from mms config manager. Try getting it.
-            final Bundle config = MmsConfigManager.getInstance().getMmsConfigBySubId(mSubId);
+            final Bundle config = MmsConfigManager.getInstance().getResolvedMmsConfig(mSubId);
             if (config != null) {
-                mMmsConfig = config;
-                // TODO: Make MmsConfigManager authoritative for user agent and don't consult
-                // TelephonyManager.
-                final TelephonyManager telephonyManager = ((TelephonyManager) mContext
-                        .getSystemService(Context.TELEPHONY_SERVICE))
-                        .createForSubscriptionId(mSubId);
-                final String userAgent = telephonyManager.getMmsUserAgent();
-                if (!TextUtils.isEmpty(userAgent)) {
-                    config.putString(SmsManager.MMS_CONFIG_USER_AGENT, userAgent);
-                }
-                final String userAgentProfileUrl = telephonyManager.getMmsUAProfUrl();
-                if (!TextUtils.isEmpty(userAgentProfileUrl)) {
-                    config.putString(SmsManager.MMS_CONFIG_UA_PROF_URL, userAgentProfileUrl);
-                }
-                // Apply overrides
-                if (mMmsConfigOverrides != null) {
+                // Apply overrides to a copy, the resolved config is shared
+                if (mMmsConfigOverrides != null && !mMmsConfigOverrides.isEmpty()) {
+                    mMmsConfig = new Bundle(config);
                     mMmsConfig.putAll(mMmsConfigOverrides);
+                } else {
+                    mMmsConfig = config;
                 }
             }
         }
@@ -136,14 +191,17 @@ public abstract class MmsRequest {
     }
 
     /**
-     * Execute the request
+     * Execute one attempt of the request. If the attempt fails with an HTTP error and the retry
+     * policy allows another attempt, the retry is scheduled with the request manager after the
+     * backoff delay, instead of holding the calling thread while waiting.
      *
      * @param context The context
      * @param networkManager The network manager to use
+     * @return true if the request is finished, false if a retry has been scheduled
      */
-    public void execute(Context context, MmsNetworkManager networkManager,boolean isfirstTry) {
+    public boolean execute(Context context, MmsNetworkManager networkManager,boolean isfirstTry) {
         final String requestId = this.toString();
-        LogUtil.i(requestId, "Executing...");
+        LogUtil.i(requestId, "Executing... attempt=" + (mAttempt + 1));
         int result = SmsManager.MMS_ERROR_UNSPECIFIED;
         int httpStatusCode = 0;
         byte[] response = null;
@@ -156,70 +214,88 @@ public abstract class MmsRequest {
         // when telephony provides such API.
         if (!ensureMmsConfigLoaded()) { // Check mms config
             LogUtil.e(requestId, "mms config is not loaded yet");
+            mNetworkAcquireStarted = true;
             result = SmsManager.MMS_ERROR_CONFIGURATION_ERROR;
         } else if (!prepareForHttpRequest()) { // Prepare request, like reading pdu data from user
             LogUtil.e(requestId, "Failed to prepare for request");
+            mNetworkAcquireStarted = true;
             result = SmsManager.MMS_ERROR_IO_ERROR;
         } else { // Execute
-            long retryDelaySecs = 2;
-            // Try multiple times of MMS HTTP request, depending on the error.
-            for (int i = 0; i < RETRY_TIMES; i++) {
+            mAttempt++;
+            mNetworkAcquireStarted = true;
+            // Whether the attempt failed and will be retried, the request still needs the network
+            boolean willRetry = false;
+            try {
+                PriorityRequestExecutor.beginBlocking();
                 try {
                     if(isVowifiConnected && firstTry){
                         networkManager.acquireNetworkEx(requestId);
                     }else{
                         networkManager.acquireNetwork(requestId);
                     }
-                    final String apnName = networkManager.getApnName();
-                    LogUtil.d(requestId, "APN name is " + apnName);
+                } finally {
+                    PriorityRequestExecutor.endBlocking();
+                }
+                final String apnName = networkManager.getApnName();
+                LogUtil.d(requestId, "APN name is " + apnName);
+                try {
+                    ApnSettings apn = null;
                     try {
-                        ApnSettings apn = null;
-                        try {
-                            apn = ApnSettings.load(context, apnName, mSubId, requestId);
-                        } catch (ApnException e) {
-                            // If no APN could be found, fall back to trying without the APN name
-                            if (apnName == null) {
-                                // If the APN name was already null then don't need to retry
-                                throw (e);
-                            }
-                            LogUtil.i(requestId, "No match with APN name: "
-                                    + apnName + ", try with no name");
-                            apn = ApnSettings.load(context, null, mSubId, requestId);
+                        apn = ApnSettings.load(context, apnName, mSubId, requestId);
+                    } catch (ApnException e) {
+                        // If no APN could be found, fall back to trying without the APN name
+                        if (apnName == null) {
+                            // If the APN name was already null then don't need to retry
+                            throw (e);
                         }
-                        LogUtil.i(requestId, "Using " + apn.toString());
-                        response = doHttp(context, networkManager, apn,firstTry,isVowifiConnected);
-                        result = Activity.RESULT_OK;
-                        // Success
-                        break;
+                        LogUtil.i(requestId, "No match with APN name: "
+                                + apnName + ", try with no name");
+                        apn = ApnSettings.load(context, null, mSubId, requestId);
+                    }
+                    LogUtil.i(requestId, "Using " + apn.toString());
+                    PriorityRequestExecutor.beginBlocking();
+                    try {
+                        response = doHttp(context, networkManager, apn, firstTry,
+                                isVowifiConnected);
                     } finally {
-                        if(isVowifiConnected){
-                            networkManager.releaseNetworkEx(requestId,this instanceof DownloadRequest);// modify for bug 745864
-                        }else{
-                            networkManager.releaseNetwork(requestId,this instanceof DownloadRequest);// modify for bug 745864
-                        }
+                        PriorityRequestExecutor.endBlocking();
                     }
-                } catch (ApnException e) {
-                    LogUtil.e(requestId, "APN failure", e);
-                    result = SmsManager.MMS_ERROR_INVALID_APN;
-                    break;
-                } catch (MmsNetworkException e) {
-                    LogUtil.e(requestId, "MMS network acquiring failure", e);
-                    result = SmsManager.MMS_ERROR_UNABLE_CONNECT_MMS;
-                    break;
+                    result = Activity.RESULT_OK;
+                    // Success
                 } catch (MmsHttpException e) {
-                    LogUtil.e(requestId, "HTTP or network I/O failure", e);
-                    result = SmsManager.MMS_ERROR_HTTP_FAILURE;
-                    httpStatusCode = e.getStatusCode();
-                    // Retry
-                } catch (Exception e) {
-                    LogUtil.e(requestId, "Unexpected failure", e);
-                    result = SmsManager.MMS_ERROR_UNSPECIFIED;
-                    break;
+                    willRetry = canRetry();
+                    throw e;
+                } finally {
+                    // Not counting this request, unless it comes back for a retry
+                    final int pendingCount = mRequestManager.getPendingRequestCount(mSubId)
+                            - (willRetry ? 0 : 1);
+                    // modify for bug 745864
+                    if(isVowifiConnected){
+                        networkManager.releaseNetworkEx(requestId,
+                                this instanceof DownloadRequest, pendingCount);
+                    }else{
+                        networkManager.releaseNetwork(requestId,
+                                this instanceof DownloadRequest, pendingCount);
+                    }
                 }
-                try {
-                    Thread.sleep(retryDelaySecs * 1000, 0/*nano*/);
-                } catch (InterruptedException e) {}
-                retryDelaySecs <<= 1;
+            } catch (ApnException e) {
+                LogUtil.e(requestId, "APN failure", e);
+                result = SmsManager.MMS_ERROR_INVALID_APN;
+            } catch (MmsNetworkException e) {
+                LogUtil.e(requestId, "MMS network acquiring failure", e);
+                result = SmsManager.MMS_ERROR_UNABLE_CONNECT_MMS;
+            } catch (MmsHttpException e) {
+                LogUtil.e(requestId, "HTTP or network I/O failure", e);
+                result = SmsManager.MMS_ERROR_HTTP_FAILURE;
+                httpStatusCode = e.getStatusCode();
+                // Retry
+                mRetryHttpStatusCode = httpStatusCode;
+                if (maybeScheduleRetry(requestId)) {
+                    return false;
+                }
+            } catch (Exception e) {
+                LogUtil.e(requestId, "Unexpected failure", e);
+                result = SmsManager.MMS_ERROR_UNSPECIFIED;
             }
         }
         processResult(context, result, response, httpStatusCode);
@@ -228,6 +304,52 @@ public abstract class MmsRequest {
             sendErrReport(context, result, httpStatusCode);
         }
         /* @} */
+        return true;
+    }
+
+    /**
+     * Schedule the next attempt of the request according to the carrier retry policy:
+     * up to CONFIG_RETRY_MAX_ATTEMPTS attempts, waiting CONFIG_RETRY_INITIAL_DELAY_MILLIS before
+     * the first retry and multiplying the delay by CONFIG_RETRY_BACKOFF_FACTOR for each further
+     * retry.
+     *
+     * @param requestId the request ID for logging
+     * @return true if a retry has been scheduled
+     */
+    private boolean maybeScheduleRetry(String requestId) {
+        if (!canRetry()) {
+            LogUtil.i(requestId, "No more retry after " + mAttempt + " attempts");
+            return false;
+        }
+        if (mRetryDelayMillis <= 0) {
+            mRetryDelayMillis = mMmsConfig.getInt(
+                    MmsConfigManager.CONFIG_RETRY_INITIAL_DELAY_MILLIS, RETRY_DELAY_MILLIS);
+        } else {
+            mRetryDelayMillis *= Math.max(1, mMmsConfig.getInt(
+                    MmsConfigManager.CONFIG_RETRY_BACKOFF_FACTOR, RETRY_BACKOFF_FACTOR));
+        }
+        LogUtil.i(requestId, "Retry in " + mRetryDelayMillis + "ms");
+        return mRequestManager.scheduleRetry(this, mRetryDelayMillis);
+    }
+
+    /**
+     * @return whether the retry policy allows another attempt after a failed one
+     */
+    private boolean canRetry() {
+        return mAttempt < mMmsConfig.getInt(
+                MmsConfigManager.CONFIG_RETRY_MAX_ATTEMPTS, RETRY_TIMES);
+    }
+
+    /**
+     * Give up a request whose scheduled retry can't run, e.g. because the service is destroyed,
+     * reporting the failure of its last attempt to the caller
+     *
+     * @param context the context
+     */
+    void failRetry(Context context) {
+        LogUtil.i(getRequestId(), "Retry dropped after " + mAttempt + " attempts");
+        processResult(context, SmsManager.MMS_ERROR_HTTP_FAILURE, null/*response*/,
+                mRetryHttpStatusCode);
     }
 
     /* SRPD: Add for Commlog feature @{ */
@@ -347,6 +469,11 @@ public abstract class MmsRequest {
      */
     protected abstract int getQueueType();
 
+    /**
+     * @return The priority class of this request in its queue, one of PRIORITY_*
+     */
+    protected abstract int getPriority();
+
     /**
      * Persist message into telephony if required (i.e. when auto-persisting is on or
      * the calling app is non-default sms app for sending)
@@ -380,6 +507,40 @@ public abstract class MmsRequest {
      */
     protected abstract void revokeUriPermission(Context context);
 
+    /**
+     * @return whether the result of the request is written to the provider, so that it still
+     *         reaches the user when the caller can't be told about it
+     */
+    protected abstract boolean isResultPersisted();
+
+    /**
+     * Mark the message of the request as failed in the provider, where the caller keeps it
+     *
+     * @param context The context
+     */
+    protected abstract void markFailedInProvider(Context context);
+
+    /**
+     * Give up a request replayed after a restart without running it, because its caller can't
+     * be told about the result. The message is marked as failed in the provider instead.
+     *
+     * @param context The context
+     */
+    void failReplayed(Context context) {
+        LogUtil.i(getRequestId(), "Failing replayed request");
+        try {
+            if (ensureMmsConfigLoaded()) {
+                markFailedInProvider(context);
+            } else {
+                LogUtil.e(getRequestId(), "mms config is not loaded, can't mark failed");
+            }
+        } catch (RuntimeException e) {
+            LogUtil.e(getRequestId(), "Failed to mark replayed request failed", e);
+        } finally {
+            revokeUriPermission(context);
+        }
+    }
+
     /**
      * Base class for handling carrier app send / download result.
      */
@@ -0,0 +1,664 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.util.AtomicFile;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only journal of the MMS requests accepted by the service, so that the requests which
+ * were queued or running when the phone process died can be executed again when it restarts.
+ *
+ * Records are appended by a single writer thread in batches, with one fsync per batch, so that
+ * callers never wait for the disk. When requests complete the journal is compacted, either by
+ * truncating it when no request is left, or by rewriting the live requests once enough
+ * completed ones have accumulated.
+ *
+ * Each record is stored as its length, a CRC32 of its payload and the payload. A torn record at
+ * the end of the file (e.g. written while the process died) is ignored on replay.
+ *
+ * The journal is read on the writer thread, so opening it doesn't block the caller. Requests
+ * added before it is read are journaled once it is.
+ */
+public class MmsRequestJournal {
+    private static final String JOURNAL_FILE_NAME = "mms_request_journal";
+
+    // Record operations
+    private static final byte RECORD_ADDED = 1;
+    private static final byte RECORD_COMPLETED = 2;
+    // Request types
+    private static final int TYPE_SEND = 1;
+    private static final int TYPE_DOWNLOAD = 2;
+
+    // Rewrite the journal once it holds this many records of completed requests
+    private static final int COMPACT_THRESHOLD = 64;
+    // Upper bound of a record, anything bigger is treated as corruption
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+    // A request is given up after being replayed this many times, e.g. because it crashes the
+    // process each time
+    private static final int MAX_REPLAY_COUNT = 2;
+    // Requests accepted longer ago than this are given up instead of being replayed
+    private static final long MAX_REPLAY_AGE_MILLIS = 6 * 60 * 60 * 1000L;
+
+    private final Context mContext;
+    private final AtomicFile mFile;
+    // Single writer thread, which serializes all the disk accesses
+    private final ExecutorService mWriter = Executors.newSingleThreadExecutor();
+
+    // Guarded by this
+    // Whether the journal has been read
+    private boolean mLoaded;
+    // The requests added before the journal was read, journaled once it is
+    private final List<MmsRequest> mUnloadedRequests = new ArrayList<>();
+    // The next request ID, 0 means "not journaled"
+    private long mNextId = 1;
+    // The ADDED record of each live request, in journal order
+    private final Map<Long, byte[]> mLiveRecords = new LinkedHashMap<>();
+    // The live requests loaded from the journal which have not been replayed yet
+    private final List<Long> mUnreplayedIds = new ArrayList<>();
+    // Records waiting for the writer
+    private ArrayList<byte[]> mPendingRecords = new ArrayList<>();
+    // Whether the writer has a batch scheduled
+    private boolean mFlushScheduled;
+    // Records in the file which belong to completed requests
+    private int mDeadRecordCount;
+    // Statistics
+    private int mBatchCount;
+    private int mRecordCount;
+    private int mCompactionCount;
+    private int mReplayedCount;
+    private int mGivenUpCount;
+
+    /**
+     * Open the journal. The requests which had not completed are loaded in background, before
+     * any new request is journaled so that new requests don't reuse their IDs.
+     */
+    public MmsRequestJournal(Context context) {
+        this(context, new File(context.getFilesDir(), JOURNAL_FILE_NAME));
+    }
+
+    @VisibleForTesting
+    MmsRequestJournal(Context context, File file) {
+        mContext = context;
+        mFile = new AtomicFile(file);
+        executeOnWriter(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    private void load() {
+        final Map<Long, byte[]> liveRecords = readLiveRecords();
+        synchronized (this) {
+            for (long id : liveRecords.keySet()) {
+                mNextId = Math.max(mNextId, id + 1);
+            }
+            mLiveRecords.putAll(liveRecords);
+            mUnreplayedIds.addAll(liveRecords.keySet());
+            mLoaded = true;
+            for (MmsRequest request : mUnloadedRequests) {
+                addLocked(request);
+            }
+            mUnloadedRequests.clear();
+        }
+    }
+
+    /**
+     * Rebuild the requests which had not completed when the journal was opened and add them to
+     * the request manager, in the order they were accepted. This runs in background.
+     *
+     * The PendingIntents of the callers can't survive the process, so a request is only run
+     * again when its result reaches the provider anyway, and only for a limited number of
+     * restarts and time. The others are failed, see {@link MmsRequest#failReplayed(Context)}.
+     * The journal is then rewritten to only contain the requests run again, with their replay
+     * counted, before they run.
+     *
+     * @param requestManager the request manager of the rebuilt requests
+     */
+    public void replay(final MmsRequest.RequestManager requestManager) {
+        executeOnWriter(new Runnable() {
+            @Override
+            public void run() {
+                replayOnWriter(requestManager);
+            }
+        });
+    }
+
+    private void replayOnWriter(MmsRequest.RequestManager requestManager) {
+        final long now = System.currentTimeMillis();
+        final List<MmsRequest> requests = new ArrayList<>();
+        final List<MmsRequest> givenUpRequests = new ArrayList<>();
+        final List<byte[]> liveRecords;
+        synchronized (this) {
+            for (long id : mUnreplayedIds) {
+                final byte[] bytes = mLiveRecords.get(id);
+                final Record record = bytes != null ? Record.decode(bytes) : null;
+                final MmsRequest request =
+                        record != null ? record.toRequest(requestManager, mContext) : null;
+                if (request == null) {
+                    LogUtil.e("MmsRequestJournal: dropping unreadable request " + id);
+                    mLiveRecords.remove(id);
+                    continue;
+                }
+                if (record.mReplayCount >= MAX_REPLAY_COUNT
+                        || now - record.mEnqueueTime > MAX_REPLAY_AGE_MILLIS
+                        || !request.isResultPersisted()) {
+                    LogUtil.w("MmsRequestJournal: giving up request " + id + " replays="
+                            + record.mReplayCount + " age=" + (now - record.mEnqueueTime) + "ms");
+                    mLiveRecords.remove(id);
+                    givenUpRequests.add(request);
+                    continue;
+                }
+                record.mReplayCount++;
+                mLiveRecords.put(id, record.encode());
+                request.setJournalId(id);
+                requests.add(request);
+            }
+            mUnreplayedIds.clear();
+            mReplayedCount += requests.size();
+            mGivenUpCount += givenUpRequests.size();
+            liveRecords = takeLiveRecordsLocked();
+        }
+        // Count the replays on disk before the requests run, so that a request crashing the
+        // process is given up after a few restarts
+        rewrite(liveRecords);
+        LogUtil.i("MmsRequestJournal: replaying " + requests.size() + " requests, giving up "
+                + givenUpRequests.size());
+        for (MmsRequest request : givenUpRequests) {
+            request.failReplayed(mContext);
+        }
+        for (MmsRequest request : requests) {
+            requestManager.addSimRequest(request);
+        }
+    }
+
+    /**
+     * Record a newly accepted request
+     *
+     * @param request the request, which is assigned its journal ID
+     */
+    public void recordAdded(MmsRequest request) {
+        if (request.getJournalId() != 0) {
+            // Already journaled, e.g. a request coming back after the carrier app failed
+            return;
+        }
+        synchronized (this) {
+            if (!mLoaded) {
+                if (!mUnloadedRequests.contains(request)) {
+                    mUnloadedRequests.add(request);
+                }
+                return;
+            }
+            addLocked(request);
+        }
+    }
+
+    private void addLocked(MmsRequest request) {
+        final long id = mNextId++;
+        final Record record = Record.fromRequest(id, request);
+        final byte[] bytes = record != null ? record.encode() : null;
+        if (bytes == null) {
+            return;
+        }
+        request.setJournalId(id);
+        mLiveRecords.put(id, bytes);
+        appendLocked(bytes);
+    }
+
+    /**
+     * Record that a request has completed and doesn't need to be replayed
+     *
+     * @param request the request
+     */
+    public void recordCompleted(MmsRequest request) {
+        final long id = request.getJournalId();
+        if (id == 0) {
+            synchronized (this) {
+                // Completed before the journal was read
+                mUnloadedRequests.remove(request);
+            }
+            return;
+        }
+        synchronized (this) {
+            if (mLiveRecords.remove(id) == null) {
+                return;
+            }
+            // The ADDED record and the COMPLETED one
+            mDeadRecordCount += 2;
+            if (mLiveRecords.isEmpty() || mDeadRecordCount >= COMPACT_THRESHOLD) {
+                scheduleCompactionLocked();
+            } else {
+                appendLocked(encodeCompleted(id));
+            }
+        }
+    }
+
+    public void shutdown() {
+        mWriter.shutdown();
+    }
+
+    /**
+     * Wait for the disk accesses scheduled so far, including the batches they schedule
+     *
+     * @return false if they are still running after the timeout
+     */
+    @VisibleForTesting
+    boolean awaitWrites(long timeoutMillis) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        executeOnWriter(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        return done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    @VisibleForTesting
+    synchronized int getLiveRequestCount() {
+        return mLiveRecords.size();
+    }
+
+    @VisibleForTesting
+    synchronized int getCompactionCount() {
+        return mCompactionCount;
+    }
+
+    private void appendLocked(byte[] record) {
+        mPendingRecords.add(record);
+        if (mFlushScheduled) {
+            // Will be written with the batch already scheduled
+            return;
+        }
+        mFlushScheduled = true;
+        final int compactionCount = mCompactionCount;
+        executeOnWriter(new Runnable() {
+            @Override
+            public void run() {
+                final ArrayList<byte[]> batch;
+                synchronized (MmsRequestJournal.this) {
+                    if (compactionCount != mCompactionCount) {
+                        // Superseded by a compaction, which scheduled its own batch of the
+                        // records appended after it, to be written after the rewrite
+                        return;
+                    }
+                    batch = mPendingRecords;
+                    mPendingRecords = new ArrayList<>();
+                    mFlushScheduled = false;
+                }
+                writeBatch(batch);
+            }
+        });
+    }
+
+    /**
+     * Replace the journal with the live records. Pending appends are dropped since the live
+     * records already reflect them.
+     */
+    private void scheduleCompactionLocked() {
+        final List<byte[]> liveRecords = takeLiveRecordsLocked();
+        executeOnWriter(new Runnable() {
+            @Override
+            public void run() {
+                rewrite(liveRecords);
+            }
+        });
+    }
+
+    /**
+     * Take the live records to rewrite the journal with, dropping the pending appends. The
+     * rewrite must be the next write of the writer thread, so that records appended from now
+     * on are written after it.
+     *
+     * @return the live records
+     */
+    private List<byte[]> takeLiveRecordsLocked() {
+        mPendingRecords = new ArrayList<>();
+        mFlushScheduled = false;
+        mDeadRecordCount = 0;
+        mCompactionCount++;
+        return new ArrayList<>(mLiveRecords.values());
+    }
+
+    private void executeOnWriter(Runnable task) {
+        try {
+            mWriter.execute(task);
+        } catch (RejectedExecutionException e) {
+            LogUtil.w("MmsRequestJournal: writer is shut down");
+        }
+    }
+
+    /**
+     * Append a batch of records and sync them to disk once
+     */
+    private void writeBatch(List<byte[]> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(mFile.getBaseFile(), true/*append*/);
+            final DataOutputStream dataOut = new DataOutputStream(out);
+            for (byte[] record : batch) {
+                writeRecord(dataOut, record);
+            }
+            dataOut.flush();
+            out.getFD().sync();
+            synchronized (this) {
+                mBatchCount++;
+                mRecordCount += batch.size();
+            }
+        } catch (IOException e) {
+            LogUtil.e("MmsRequestJournal: failed to append", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void rewrite(List<byte[]> records) {
+        if (records.isEmpty()) {
+            mFile.delete();
+            return;
+        }
+        FileOutputStream out = null;
+        try {
+            out = mFile.startWrite();
+            final DataOutputStream dataOut = new DataOutputStream(out);
+            for (byte[] record : records) {
+                writeRecord(dataOut, record);
+            }
+            dataOut.flush();
+            // Syncs the file before renaming it over the journal
+            mFile.finishWrite(out);
+        } catch (IOException e) {
+            LogUtil.e("MmsRequestJournal: failed to compact", e);
+            if (out != null) {
+                mFile.failWrite(out);
+            }
+        }
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[] record) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(record);
+        out.writeInt(record.length);
+        out.writeLong(crc.getValue());
+        out.write(record);
+    }
+
+    /**
+     * @return the ADDED records without a COMPLETED record, by request ID
+     */
+    private Map<Long, byte[]> readLiveRecords() {
+        final Map<Long, byte[]> liveRecords = new LinkedHashMap<>();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(mFile.openRead());
+            while (true) {
+                final int length = in.readInt();
+                final long checksum = in.readLong();
+                if (length <= 0 || length > MAX_RECORD_SIZE) {
+                    LogUtil.w("MmsRequestJournal: invalid record length " + length);
+                    break;
+                }
+                final byte[] record = new byte[length];
+                in.readFully(record);
+                final CRC32 crc = new CRC32();
+                crc.update(record);
+                if (crc.getValue() != checksum) {
+                    LogUtil.w("MmsRequestJournal: corrupted record");
+                    break;
+                }
+                final DataInputStream recordIn =
+                        new DataInputStream(new ByteArrayInputStream(record));
+                final byte op = recordIn.readByte();
+                final long id = recordIn.readLong();
+                if (op == RECORD_ADDED) {
+                    liveRecords.put(id, record);
+                } else if (op == RECORD_COMPLETED) {
+                    liveRecords.remove(id);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // No journal, nothing to replay
+        } catch (EOFException e) {
+            // End of the journal, possibly a torn record
+        } catch (IOException e) {
+            LogUtil.e("MmsRequestJournal: failed to read", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+        return liveRecords;
+    }
+
+    private static byte[] encodeCompleted(long id) {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeByte(RECORD_COMPLETED);
+            out.writeLong(id);
+            out.flush();
+        } catch (IOException e) {
+            // Can't happen with a ByteArrayOutputStream
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * The ADDED record of a request
+     */
+    private static final class Record {
+        long mId;
+        int mType;
+        int mSubId;
+        String mCreator;
+        String mContentUri;
+        String mLocationUrl;
+        byte[] mConfigOverrides;
+        // Wall clock time the request was accepted at
+        long mEnqueueTime;
+        // Number of times the request has been replayed
+        int mReplayCount;
+
+        static Record fromRequest(long id, MmsRequest request) {
+            final Record record = new Record();
+            final Uri contentUri;
+            if (request instanceof SendRequest) {
+                record.mType = TYPE_SEND;
+                contentUri = ((SendRequest) request).getPduUri();
+                record.mLocationUrl = ((SendRequest) request).getLocationUrl();
+            } else if (request instanceof DownloadRequest) {
+                record.mType = TYPE_DOWNLOAD;
+                contentUri = ((DownloadRequest) request).getContentUri();
+                record.mLocationUrl = ((DownloadRequest) request).getLocationUrl();
+            } else {
+                return null;
+            }
+            record.mId = id;
+            record.mSubId = request.getSubId();
+            record.mCreator = request.mCreator;
+            record.mContentUri = contentUri != null ? contentUri.toString() : null;
+            record.mConfigOverrides = marshallBundle(request.mMmsConfigOverrides);
+            record.mEnqueueTime = System.currentTimeMillis();
+            return record;
+        }
+
+        /**
+         * @return the record, or null if it can't be read
+         */
+        static Record decode(byte[] bytes) {
+            try {
+                final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+                final Record record = new Record();
+                in.readByte();
+                record.mId = in.readLong();
+                record.mType = in.readInt();
+                record.mSubId = in.readInt();
+                record.mCreator = readNullableString(in);
+                record.mContentUri = readNullableString(in);
+                record.mLocationUrl = readNullableString(in);
+                record.mConfigOverrides = new byte[in.readInt()];
+                in.readFully(record.mConfigOverrides);
+                record.mEnqueueTime = in.readLong();
+                record.mReplayCount = in.readInt();
+                return record;
+            } catch (IOException | RuntimeException e) {
+                LogUtil.e("MmsRequestJournal: failed to decode", e);
+                return null;
+            }
+        }
+
+        byte[] encode() {
+            try {
+                final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                final DataOutputStream out = new DataOutputStream(bytes);
+                out.writeByte(RECORD_ADDED);
+                out.writeLong(mId);
+                out.writeInt(mType);
+                out.writeInt(mSubId);
+                writeNullableString(out, mCreator);
+                writeNullableString(out, mContentUri);
+                writeNullableString(out, mLocationUrl);
+                out.writeInt(mConfigOverrides.length);
+                out.write(mConfigOverrides);
+                out.writeLong(mEnqueueTime);
+                out.writeInt(mReplayCount);
+                out.flush();
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                LogUtil.e("MmsRequestJournal: failed to encode request " + mId, e);
+                return null;
+            }
+        }
+
+        /**
+         * @return the request, without the PendingIntent of its caller, or null if it can't be
+         *         rebuilt
+         */
+        MmsRequest toRequest(MmsRequest.RequestManager requestManager, Context context) {
+            try {
+                final Bundle configOverrides = unmarshallBundle(mConfigOverrides);
+                final Uri uri = mContentUri != null ? Uri.parse(mContentUri) : null;
+                switch (mType) {
+                    case TYPE_SEND:
+                        return new SendRequest(requestManager, mSubId, uri, mLocationUrl,
+                                null/*sentIntent*/, mCreator, configOverrides, context);
+                    case TYPE_DOWNLOAD:
+                        return new DownloadRequest(requestManager, mSubId, mLocationUrl, uri,
+                                null/*downloadedIntent*/, mCreator, configOverrides, context);
+                }
+            } catch (RuntimeException e) {
+                LogUtil.e("MmsRequestJournal: failed to rebuild request " + mId, e);
+            }
+            return null;
+        }
+    }
+
+    private static void writeNullableString(DataOutputStream out, String value)
+            throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static byte[] marshallBundle(Bundle bundle) {
+        if (bundle == null) {
+            return new byte[0];
+        }
+        final Parcel parcel = Parcel.obtain();
+        try {
+            bundle.writeToParcel(parcel, 0);
+            return parcel.marshall();
+        } catch (RuntimeException e) {
+            // E.g. the overrides contain binders, which can't be persisted
+            LogUtil.w("MmsRequestJournal: can't persist config overrides", e);
+            return new byte[0];
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    private static Bundle unmarshallBundle(byte[] bytes) {
+        if (bytes.length == 0) {
+            return null;
+        }
+        final Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(bytes, 0, bytes.length);
+            parcel.setDataPosition(0);
+            return parcel.readBundle(MmsRequestJournal.class.getClassLoader());
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (this) {
+            pw.println(prefix + "Request journal: live=" + mLiveRecords.size()
+                    + " dead=" + mDeadRecordCount
+                    + " records=" + mRecordCount
+                    + " batches=" + mBatchCount
+                    + " compactions=" + mCompactionCount
+                    + " replayed=" + mReplayedCount
+                    + " givenUp=" + mGivenUpCount);
+        }
+    }
+}
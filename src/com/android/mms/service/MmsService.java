@@ -57,16 +57,22 @@ import com.google.android.mms.pdu.RetrieveConf;
 import com.google.android.mms.pdu.SendReq;
 import com.google.android.mms.util.SqliteWrapper;
 
+import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.ArrayDeque;
-import java.util.Arrays;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import android.os.SystemProperties;
 import android.util.Log;
 /**
@@ -88,6 +94,21 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
 
     // The default number of threads allowed to run MMS requests in each queue
     public static final int THREAD_POOL_SIZE = 4;
+    // The default bounds of the adaptive number of threads in each queue, which carriers can
+    // override with MmsConfigManager.CONFIG_REQUEST_POOL_MIN_SIZE/MAX_SIZE
+    private static final int MIN_THREAD_POOL_SIZE = 2;
+    private static final int MAX_THREAD_POOL_SIZE = 8;
+
+    // Whether requests waiting for a SIM are kept in one lane per subId (so that a request for
+    // one SIM does not block later requests for the running SIM), or in the strict FIFO
+    // mPendingSimRequestQueue.
+    private static final boolean SIM_REQUEST_LANES_ENABLED =
+            SystemProperties.getBoolean("persist.sys.mms.sim_lanes", true);
+
+    // Whether the MMS network is requested as soon as a request is queued to run, instead of
+    // when it starts its HTTP transaction
+    private static final boolean NETWORK_PREWARM_ENABLED =
+            SystemProperties.getBoolean("persist.sys.mms.network_prewarm", true);
 
     // Pending requests that are waiting for the SIM to be available
     // If a different SIM is currently used by previous requests, the following
@@ -96,11 +117,17 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
     // Requests are not reordered. So, e.g. if current SIM is SIM1, a request for SIM2 will be
     // blocked in the queue. And a later request for SIM1 will be appended to the queue, ordered
     // after the request for SIM2, instead of being put into the running queue.
-    // TODO: persist this in case MmsService crashes
     private final Queue<MmsRequest> mPendingSimRequestQueue = new ArrayDeque<>();
 
-    // Thread pool for transferring PDU with MMS apps
-    private final ExecutorService mPduTransferExecutor = Executors.newCachedThreadPool();
+    // Pending requests that are waiting for the SIM to be available, one lane per subId.
+    // Used instead of mPendingSimRequestQueue when SIM_REQUEST_LANES_ENABLED is set.
+    private final SimRequestLanes mSimRequestLanes = new SimRequestLanes();
+
+    // Journal of the accepted requests, replayed if the service dies before they complete
+    private MmsRequestJournal mRequestJournal;
+
+    // Bounded thread pool for transferring PDU with MMS apps
+    private final PduTransferExecutor mPduTransferExecutor = new PduTransferExecutor();
 
     // A cache of MmsNetworkManager for SIMs
     private final SparseArray<MmsNetworkManager> mNetworkManagerCache = new SparseArray<>();
@@ -114,10 +141,20 @@ public class MmsService extends Service implements MmsRequest.RequestManager {
     // The current running MmsRequest count.
     private int mRunningRequestCount;
 
-    // Running request queues, one thread pool per queue
+    // Timer of the retries of running requests, so that no worker thread is held while waiting
+    private final ScheduledExecutorService mRetryScheduler =
+            Executors.newSingleThreadScheduledExecutor();
+    // The requests waiting for their retry on mRetryScheduler, guarded by itself. A request is
+    // removed by whoever runs or fails its retry.
+    private final Set<MmsRequest> mPendingRetries = new HashSet<>();
+
+    // Running request queues, one thread pool per queue, which run requests by priority
     // 0: send queue
     // 1: download queue
-    private final ExecutorService[] mRunningRequestExecutors = new ExecutorService[2];
+    private final PriorityRequestExecutor[] mRunningRequestExecutors =
+            new PriorityRequestExecutor[2];
+    // The config generation the pool size bounds of the queues were computed for
+    private final AtomicInteger mPoolBoundsGeneration = new AtomicInteger(-1);
 
     private MmsNetworkManager getNetworkManager(int subId) {
         synchronized (mNetworkManagerCache) {
@@ -464,11 +501,17 @@ public  boolean checktheOperatorIsThailand() {
             LogUtil.e("Add running or pending: empty request");
             return;
         }
-        LogUtil.d("Current running=" + mRunningRequestCount + ", "
-                + "current subId=" + mCurrentSubId + ", "
-                + "pending=" + mPendingSimRequestQueue.size());
+        if (mRequestJournal != null) {
+            mRequestJournal.recordAdded(request);
+        }
+        updatePoolSizeBounds();
         synchronized (this) {
-            if (mPendingSimRequestQueue.size() > 0 ||
+            LogUtil.d("Current running=" + mRunningRequestCount + ", "
+                    + "current subId=" + mCurrentSubId + ", "
+                    + "pending=" + getPendingSimRequestCountSynchronized());
+            if (SIM_REQUEST_LANES_ENABLED) {
+                addSimRequestToLaneSynchronized(request);
+            } else if (mPendingSimRequestQueue.size() > 0 ||
                     (mRunningRequestCount > 0 && request.getSubId() != mCurrentSubId)) {
                 LogUtil.d("Add request to pending queue."
                         + " Request subId=" + request.getSubId() + ","
@@ -486,6 +529,38 @@ public  boolean checktheOperatorIsThailand() {
         }
     }
 
+    /**
+     * Run the request right away if its SIM is the running one, otherwise park it in the lane of
+     * its SIM. Unlike the FIFO queue, a parked request for another SIM doesn't hold back later
+     * requests for the running SIM, unless that lane has been waiting for too long.
+     */
+    private void addSimRequestToLaneSynchronized(MmsRequest request) {
+        final int subId = request.getSubId();
+        if (mRunningRequestCount <= 0) {
+            if (mSimRequestLanes.isEmpty()) {
+                addToRunningRequestQueueSynchronized(request);
+            } else {
+                LogUtil.e("Nothing's running but lanes are not empty");
+                mSimRequestLanes.add(request);
+                movePendingSimRequestsToRunningSynchronized();
+            }
+        } else if (subId == mCurrentSubId && mSimRequestLanes.depth(subId) == 0
+                && !mSimRequestLanes.isStarving(subId)) {
+            addToRunningRequestQueueSynchronized(request);
+        } else {
+            LogUtil.d("Add request to lane."
+                    + " Request subId=" + subId + ","
+                    + " current subId=" + mCurrentSubId + ","
+                    + " lane depth=" + mSimRequestLanes.depth(subId));
+            mSimRequestLanes.add(request);
+        }
+    }
+
+    private int getPendingSimRequestCountSynchronized() {
+        return SIM_REQUEST_LANES_ENABLED
+                ? mSimRequestLanes.size() : mPendingSimRequestQueue.size();
+    }
+
     private void sendSettingsIntentForFailedMms(boolean isIncoming, int subId) {
         Intent intent = new Intent(Settings.ACTION_ENABLE_MMS_DATA_REQUEST);
 
@@ -509,27 +584,154 @@ public  boolean checktheOperatorIsThailand() {
         }
         mRunningRequestCount++;
         mCurrentSubId = request.getSubId();
+        if (NETWORK_PREWARM_ENABLED) {
+            // Bring the network up while the request reads its PDU and waits for a thread
+            getNetworkManager(request.getSubId()).prewarmNetwork(request);
+        }
         // Send to the corresponding request queue for execution
-        mRunningRequestExecutors[queue].execute(new Runnable() {
+        executeRunningRequest(request);
+    }
+
+    /**
+     * Run a request on its queue. The request stays counted as running until it is finished,
+     * including while it waits for a scheduled retry.
+     */
+    private void executeRunningRequest(final MmsRequest request) {
+        mRunningRequestExecutors[request.getQueueType()].execute(request.getPriority(),
+                new Runnable() {
             @Override
             public void run() {
+                boolean finished = true;
                 try {
-                    request.execute(MmsService.this, getNetworkManager(request.getSubId()),true);
+                    finished = request.execute(MmsService.this,
+                            getNetworkManager(request.getSubId()), true);
                 } finally {
-                    synchronized (MmsService.this) {
-                        mRunningRequestCount--;
-                        if (mRunningRequestCount <= 0) {
-                            movePendingSimRequestsToRunningSynchronized();
-                        }
+                    if (finished) {
+                        onRunningRequestFinished(request);
                     }
                 }
             }
         });
     }
 
+    private void onRunningRequestFinished(MmsRequest request) {
+        if (mRequestJournal != null) {
+            mRequestJournal.recordCompleted(request);
+        }
+        synchronized (this) {
+            mRunningRequestCount--;
+            if (mRunningRequestCount <= 0) {
+                movePendingSimRequestsToRunningSynchronized();
+            }
+        }
+    }
+
+    /**
+     * Fail a request whose retry can't run, so that its caller still gets the result
+     */
+    private void failRetry(MmsRequest request) {
+        try {
+            request.failRetry(this);
+        } finally {
+            onRunningRequestFinished(request);
+        }
+    }
+
+    @Override
+    public boolean scheduleRetry(final MmsRequest request, long delayMillis) {
+        synchronized (mPendingRetries) {
+            mPendingRetries.add(request);
+        }
+        try {
+            mRetryScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mPendingRetries) {
+                        if (!mPendingRetries.remove(request)) {
+                            // Failed by onDestroy
+                            return;
+                        }
+                    }
+                    try {
+                        executeRunningRequest(request);
+                    } catch (RejectedExecutionException e) {
+                        LogUtil.e(request.toString(), "Failed to execute retry", e);
+                        failRetry(request);
+                    }
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException e) {
+            LogUtil.e(request.toString(), "Failed to schedule retry", e);
+            synchronized (mPendingRetries) {
+                mPendingRetries.remove(request);
+            }
+            return false;
+        }
+    }
+
+    @Override
+    public int getPendingRequestCount(int subId) {
+        synchronized (this) {
+            int count = subId == mCurrentSubId ? mRunningRequestCount : 0;
+            if (SIM_REQUEST_LANES_ENABLED) {
+                count += mSimRequestLanes.depth(subId);
+            } else {
+                for (MmsRequest request : mPendingSimRequestQueue) {
+                    if (request.getSubId() == subId) {
+                        count++;
+                    }
+                }
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Apply the carrier bounds to the pool size of the queues, once per load of the config. The
+     * queues are shared by the SIMs, so they get the largest bounds of the active SIMs rather
+     * than those of whichever SIM is running.
+     */
+    private void updatePoolSizeBounds() {
+        final MmsConfigManager configManager = MmsConfigManager.getInstance();
+        final int generation = configManager.getConfigGeneration();
+        if (mPoolBoundsGeneration.getAndSet(generation) == generation) {
+            return;
+        }
+        int minPoolSize = 0;
+        int maxPoolSize = 0;
+        for (Bundle config : configManager.getLoadedMmsConfigs()) {
+            minPoolSize = Math.max(minPoolSize, config.getInt(
+                    MmsConfigManager.CONFIG_REQUEST_POOL_MIN_SIZE, MIN_THREAD_POOL_SIZE));
+            maxPoolSize = Math.max(maxPoolSize, config.getInt(
+                    MmsConfigManager.CONFIG_REQUEST_POOL_MAX_SIZE, MAX_THREAD_POOL_SIZE));
+        }
+        if (maxPoolSize <= 0) {
+            // Not loaded yet
+            minPoolSize = MIN_THREAD_POOL_SIZE;
+            maxPoolSize = MAX_THREAD_POOL_SIZE;
+        }
+        LogUtil.d("Pool size bounds " + minPoolSize + "-" + maxPoolSize
+                + " for config generation " + generation);
+        for (PriorityRequestExecutor executor : mRunningRequestExecutors) {
+            if (executor != null) {
+                executor.setPoolSizeBounds(minPoolSize, maxPoolSize);
+            }
+        }
+    }
+
     private void movePendingSimRequestsToRunningSynchronized() {
         LogUtil.d("Schedule requests pending on SIM");
         mCurrentSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+        if (SIM_REQUEST_LANES_ENABLED) {
+            // Switch to the lane that has been waiting the longest and drain it
+            final int subId = mSimRequestLanes.nextSubId();
+            MmsRequest request;
+            while ((request = mSimRequestLanes.poll(subId)) != null) {
+                addToRunningRequestQueueSynchronized(request);
+            }
+            return;
+        }
         while (mPendingSimRequestQueue.size() > 0) {
             final MmsRequest request = mPendingSimRequestQueue.peek();
             if (request != null) {
@@ -558,6 +760,38 @@ public  boolean checktheOperatorIsThailand() {
         return mStub;
     }
 
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        pw.println("MmsService:");
+        synchronized (this) {
+            pw.println("  running=" + mRunningRequestCount + " current subId=" + mCurrentSubId
+                    + " lanes=" + SIM_REQUEST_LANES_ENABLED);
+            if (SIM_REQUEST_LANES_ENABLED) {
+                mSimRequestLanes.dump(pw, "  ");
+            } else {
+                pw.println("  pending=" + mPendingSimRequestQueue.size());
+            }
+        }
+        if (mRequestJournal != null) {
+            mRequestJournal.dump(pw, "  ");
+        }
+        mPduTransferExecutor.dump(pw, "  ");
+        MmsConfigManager.getInstance().dump(pw, "  ");
+        MacroCache.getInstance().dump(pw, "  ");
+        ApnSettingsCache.getInstance().dump(pw, "  ");
+        MmsHttpClient.dumpStats(pw, "  ");
+        synchronized (mNetworkManagerCache) {
+            for (int i = 0; i < mNetworkManagerCache.size(); i++) {
+                mNetworkManagerCache.valueAt(i).dump(pw, "  ");
+            }
+        }
+        for (PriorityRequestExecutor executor : mRunningRequestExecutors) {
+            if (executor != null) {
+                executor.dump(pw, "  ");
+            }
+        }
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -565,19 +799,42 @@ public  boolean checktheOperatorIsThailand() {
         // Load mms_config
         MmsConfigManager.getInstance().init(this);
         // Initialize running request state
-        for (int i = 0; i < mRunningRequestExecutors.length; i++) {
-            mRunningRequestExecutors[i] = Executors.newFixedThreadPool(THREAD_POOL_SIZE);
-        }
+        mRunningRequestExecutors[QUEUE_INDEX_SEND] = new PriorityRequestExecutor("send",
+                THREAD_POOL_SIZE, MIN_THREAD_POOL_SIZE, MAX_THREAD_POOL_SIZE);
+        mRunningRequestExecutors[QUEUE_INDEX_DOWNLOAD] = new PriorityRequestExecutor("download",
+                THREAD_POOL_SIZE, MIN_THREAD_POOL_SIZE, MAX_THREAD_POOL_SIZE);
         synchronized (this) {
             mCurrentSubId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
             mRunningRequestCount = 0;
         }
+        // Read in background by the journal
+        mRequestJournal = new MmsRequestJournal(this);
+        // Replayed requests need the MMS config of their SIM, which is loaded in background
+        MmsConfigManager.getInstance().runWhenLoaded(new Runnable() {
+            @Override
+            public void run() {
+                mRequestJournal.replay(MmsService.this);
+            }
+        });
     }
 
     @Override
     public void onDestroy() {
         super.onDestroy();
         LogUtil.d("onDestroy");
+        mRetryScheduler.shutdownNow();
+        // The retries which won't run now, their callers still get the result
+        final List<MmsRequest> droppedRetries;
+        synchronized (mPendingRetries) {
+            droppedRetries = new ArrayList<>(mPendingRetries);
+            mPendingRetries.clear();
+        }
+        for (MmsRequest request : droppedRetries) {
+            failRetry(request);
+        }
+        if (mRequestJournal != null) {
+            mRequestJournal.shutdown();
+        }
         for (ExecutorService executor : mRunningRequestExecutors) {
             executor.shutdown();
         }
@@ -894,30 +1151,19 @@ public  boolean checktheOperatorIsThailand() {
         }
         Callable<byte[]> copyPduToArray = new Callable<byte[]>() {
             public byte[] call() {
-                ParcelFileDescriptor.AutoCloseInputStream inStream = null;
+                ParcelFileDescriptor pduFd = null;
                 try {
                     ContentResolver cr = MmsService.this.getContentResolver();
-                    ParcelFileDescriptor pduFd = cr.openFileDescriptor(contentUri, "r");
-                    inStream = new ParcelFileDescriptor.AutoCloseInputStream(pduFd);
-                    // Request one extra byte to make sure file not bigger than maxSize
-                    byte[] tempBody = new byte[maxSize + 1];
-                    int bytesRead = inStream.read(tempBody, 0, maxSize + 1);
-                    if (bytesRead == 0) {
-                        LogUtil.e("Read empty PDU");
-                        return null;
-                    }
-                    if (bytesRead <= maxSize) {
-                        return Arrays.copyOf(tempBody, bytesRead);
-                    }
-                    LogUtil.e("PDU read is too large");
-                    return null;
+                    pduFd = cr.openFileDescriptor(contentUri, "r");
+                    // Sized from the file instead of maxSize, which can be megabytes
+                    return PduStreams.readPdu(pduFd, maxSize);
                 } catch (IOException ex) {
                     LogUtil.e("IO exception reading PDU", ex);
                     return null;
                 } finally {
-                    if (inStream != null) {
+                    if (pduFd != null) {
                         try {
-                            inStream.close();
+                            pduFd.close();
                         } catch (IOException ex) {
                         }
                     }
@@ -925,14 +1171,45 @@ public  boolean checktheOperatorIsThailand() {
             }
         };
 
-        final Future<byte[]> pendingResult = mPduTransferExecutor.submit(copyPduToArray);
-        try {
-            return pendingResult.get(TASK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
-        } catch (Exception e) {
-            // Typically a timeout occurred - cancel task
-            pendingResult.cancel(true);
+        return mPduTransferExecutor.executeAndWait("read", copyPduToArray, TASK_TIMEOUT_MS);
+    }
+
+    /**
+     * Open the pdu file of a content provider uri for reading
+     *
+     * @param contentUri content provider uri to open
+     * @return the file descriptor if succeeded else null
+     */
+    public ParcelFileDescriptor openPduFromContentUri(final Uri contentUri) {
+        if (contentUri == null) {
+            return null;
         }
-        return null;
+        final Callable<ParcelFileDescriptor> openPdu = new Callable<ParcelFileDescriptor>() {
+            public ParcelFileDescriptor call() throws IOException {
+                return MmsService.this.getContentResolver().openFileDescriptor(contentUri, "r");
+            }
+        };
+
+        return mPduTransferExecutor.executeAndWait("openRead", openPdu, TASK_TIMEOUT_MS);
+    }
+
+    /**
+     * Open the pdu file of a content provider uri for writing
+     *
+     * @param contentUri content provider uri to open
+     * @return the file descriptor if succeeded else null
+     */
+    public ParcelFileDescriptor openPduToContentUri(final Uri contentUri) {
+        if (contentUri == null) {
+            return null;
+        }
+        final Callable<ParcelFileDescriptor> openPdu = new Callable<ParcelFileDescriptor>() {
+            public ParcelFileDescriptor call() throws IOException {
+                return MmsService.this.getContentResolver().openFileDescriptor(contentUri, "w");
+            }
+        };
+
+        return mPduTransferExecutor.executeAndWait("openWrite", openPdu, TASK_TIMEOUT_MS);
     }
 
     /**
@@ -969,14 +1246,8 @@ public  boolean checktheOperatorIsThailand() {
             }
         };
 
-        final Future<Boolean> pendingResult =
-                mPduTransferExecutor.submit(copyDownloadedPduToOutput);
-        try {
-            return pendingResult.get(TASK_TIMEOUT_MS, TimeUnit.MILLISECONDS);
-        } catch (Exception e) {
-            // Typically a timeout occurred - cancel task
-            pendingResult.cancel(true);
-        }
-        return false;
+        final Boolean result = mPduTransferExecutor.executeAndWait(
+                "write", copyDownloadedPduToOutput, TASK_TIMEOUT_MS);
+        return result != null && result;
     }
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import java.io.PrintWriter;
+
+/**
+ * Decides how long the MMS network of a subscription is kept once its last request released it,
+ * so that the next request of a burst doesn't pay for a new PDN bring-up.
+ *
+ * The network lingers up to the carrier cap when more requests of the subscription are queued,
+ * and otherwise for about twice the recent interval between requests when that fits within the
+ * cap. Downloads linger at least long enough for the app to send the acknowledgement on the
+ * same network, even when the cap is lower.
+ *
+ * Not thread safe, guarded by the owning {@link MmsNetworkManager}.
+ */
+public class NetworkLingerPolicy {
+    // Upper bound of the linger, unless the carrier overrides it with
+    // MmsConfigManager.CONFIG_NETWORK_LINGER_MAX_MILLIS
+    public static final long DEFAULT_MAX_LINGER_MILLIS = 15 * 1000;
+    // Linger after a download, for the acknowledgement to use the same network
+    private static final long DOWNLOAD_LINGER_MILLIS = 5 * 1000;
+    // Number of recent requests the arrival rate is estimated from
+    private static final int ARRIVAL_HISTORY_SIZE = 8;
+    // Requests older than this don't count towards the arrival rate
+    private static final long ARRIVAL_WINDOW_MILLIS = 60 * 1000;
+
+    private final String mName;
+    // Ring buffer of the recent acquisition times
+    private final long[] mArrivals = new long[ARRIVAL_HISTORY_SIZE];
+    private int mArrivalCount;
+    private int mNextArrival;
+
+    // Start of the pending network bring-up, or -1
+    private long mBringUpStartTime = -1;
+    private long mBringUpCount;
+    private long mBringUpTotalMillis;
+    private long mLingerCount;
+    private long mLingerTotalMillis;
+    private long mLingerReuseCount;
+    private long mLingerExpiredCount;
+
+    public NetworkLingerPolicy(String name) {
+        mName = name;
+    }
+
+    /**
+     * A request acquires the network
+     */
+    public void onAcquire(long now) {
+        mArrivals[mNextArrival] = now;
+        mNextArrival = (mNextArrival + 1) % ARRIVAL_HISTORY_SIZE;
+        mArrivalCount = Math.min(mArrivalCount + 1, ARRIVAL_HISTORY_SIZE);
+    }
+
+    /**
+     * @param now          the current time
+     * @param isDownload   whether the releasing request is a download
+     * @param pendingCount the number of other requests of the subscription not finished yet,
+     *                     including the releasing request itself when it will be retried
+     * @param maxMillis    the carrier cap of the linger, not applied to the download minimum
+     * @return how long to keep the network before releasing it, 0 to release it now
+     */
+    public long getLingerMillis(long now, boolean isDownload, int pendingCount,
+            long maxMillis) {
+        // The acknowledgement of a download needs the network regardless of the cap
+        final long minLinger = isDownload ? DOWNLOAD_LINGER_MILLIS : 0;
+        if (maxMillis <= 0) {
+            return minLinger;
+        }
+        if (pendingCount > 0) {
+            // The queued requests will need the network soon
+            return Math.max(minLinger, maxMillis);
+        }
+        long linger = 0;
+        final long interval = getMeanArrivalIntervalMillis(now);
+        if (interval > 0 && interval <= maxMillis) {
+            // Requests come in a burst, keep the network until the next one is likely in
+            linger = Math.min(2 * interval, maxMillis);
+        }
+        return Math.max(minLinger, linger);
+    }
+
+    /**
+     * @return the mean interval between the recent requests, or -1 if there are too few
+     */
+    private long getMeanArrivalIntervalMillis(long now) {
+        long oldest = Long.MAX_VALUE;
+        long newest = Long.MIN_VALUE;
+        int count = 0;
+        for (int i = 0; i < mArrivalCount; i++) {
+            final long arrival = mArrivals[i];
+            if (now - arrival <= ARRIVAL_WINDOW_MILLIS) {
+                oldest = Math.min(oldest, arrival);
+                newest = Math.max(newest, arrival);
+                count++;
+            }
+        }
+        if (count < 2) {
+            return -1;
+        }
+        return (newest - oldest) / (count - 1);
+    }
+
+    public void onBringUpStarted(long now) {
+        mBringUpStartTime = now;
+    }
+
+    public void onBringUpFinished(long now) {
+        if (mBringUpStartTime >= 0) {
+            mBringUpCount++;
+            mBringUpTotalMillis += now - mBringUpStartTime;
+            mBringUpStartTime = -1;
+        }
+    }
+
+    public void onBringUpAborted() {
+        mBringUpStartTime = -1;
+    }
+
+    public void onLingerStarted(long lingerMillis) {
+        mLingerCount++;
+        mLingerTotalMillis += lingerMillis;
+    }
+
+    /**
+     * A request acquired the network while it lingered, saving a bring-up
+     */
+    public void onLingerReused() {
+        mLingerReuseCount++;
+    }
+
+    /**
+     * The network was released at the end of its linger without being used
+     */
+    public void onLingerExpired() {
+        mLingerExpiredCount++;
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        final long meanBringUpMillis = mBringUpCount > 0 ? mBringUpTotalMillis / mBringUpCount : 0;
+        pw.println(prefix + mName + " linger: bringUps=" + mBringUpCount
+                + " avgBringUp=" + meanBringUpMillis + "ms"
+                + " lingers=" + mLingerCount
+                + " avgLinger=" + (mLingerCount > 0 ? mLingerTotalMillis / mLingerCount : 0)
+                + "ms"
+                + " reused=" + mLingerReuseCount
+                + " expired=" + mLingerExpiredCount
+                + " savedBringUp~" + (mLingerReuseCount * meanBringUpMillis) + "ms");
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import com.google.android.mms.pdu.GenericPdu;
+import com.google.android.mms.pdu.PduHeaders;
+import com.google.android.mms.pdu.PduParser;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+
+/**
+ * Parser of the headers of a PDU, for callers which don't need its parts, e.g. to look at the
+ * recipients of an outgoing message without reading the whole message.
+ */
+public class PduHeaderParser extends PduParser {
+    private PduHeaderParser(byte[] pduData, boolean parseContentDisposition) {
+        super(pduData, parseContentDisposition);
+    }
+
+    /**
+     * Find the end of the headers of a PDU
+     *
+     * @param data                      the start of the PDU
+     * @param length                    the number of valid bytes in data
+     * @param supportContentDisposition whether the carrier supports content disposition
+     * @return the length of the headers, or -1 if the data doesn't hold all of them
+     */
+    public static int getHeadersLength(byte[] data, int length,
+            boolean supportContentDisposition) {
+        final ByteArrayInputStream stream = new ByteArrayInputStream(data, 0, length);
+        final PduHeaders headers;
+        try {
+            headers = new PduHeaderParser(data, supportContentDisposition).parseHeaders(stream);
+        } catch (RuntimeException e) {
+            return -1;
+        }
+        // The content type header is the last one and is followed by the body, so headers
+        // running to the end of the data may have been cut
+        if (headers == null || stream.available() == 0) {
+            return -1;
+        }
+        return length - stream.available();
+    }
+
+    /**
+     * Parse the headers of a PDU into a message without parts
+     *
+     * @param data                      the start of the PDU
+     * @param length                    the number of valid bytes in data
+     * @param supportContentDisposition whether the carrier supports content disposition
+     * @return the message with an empty body, or null if the data doesn't hold all the headers
+     *         or they can't be parsed
+     */
+    public static GenericPdu parseHeadersOnly(byte[] data, int length,
+            boolean supportContentDisposition) {
+        final int headersLength = getHeadersLength(data, length, supportContentDisposition);
+        if (headersLength < 0) {
+            return null;
+        }
+        // The headers followed by a multipart body with no part
+        final byte[] pdu = Arrays.copyOf(data, headersLength + 1);
+        pdu[headersLength] = 0;
+        try {
+            return new PduParser(pdu, supportContentDisposition).parse();
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.os.ParcelFileDescriptor;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Helpers to move PDUs between the MMS apps and the service without sizing buffers by the
+ * carrier's maximum message size.
+ *
+ * Transfers go through small fixed-size chunk buffers, which are pooled so that concurrent
+ * requests don't allocate new ones for each PDU.
+ */
+public final class PduStreams {
+    // Size of the pooled transfer buffers
+    public static final int CHUNK_SIZE = 16 * 1024;
+    // Number of buffers kept in the pool
+    private static final int POOL_SIZE = 4;
+
+    // Guarded by itself
+    private static final ArrayDeque<byte[]> sBufferPool = new ArrayDeque<>(POOL_SIZE);
+
+    private PduStreams() {}
+
+    /**
+     * Take a transfer buffer of {@link #CHUNK_SIZE} bytes from the pool. It must be given back
+     * with {@link #releaseBuffer(byte[])} once done.
+     */
+    public static byte[] acquireBuffer() {
+        synchronized (sBufferPool) {
+            final byte[] buffer = sBufferPool.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new byte[CHUNK_SIZE];
+    }
+
+    /**
+     * Give a transfer buffer back to the pool
+     */
+    public static void releaseBuffer(byte[] buffer) {
+        if (buffer == null || buffer.length != CHUNK_SIZE) {
+            return;
+        }
+        synchronized (sBufferPool) {
+            if (sBufferPool.size() < POOL_SIZE) {
+                sBufferPool.add(buffer);
+            }
+        }
+    }
+
+    /**
+     * Read a whole PDU from a file descriptor.
+     *
+     * A regular file is read into an array of its size. A pipe or socket, whose size is
+     * unknown, is read in chunks into an array which grows as data arrives.
+     *
+     * @param pduFd   the file descriptor to read, not closed
+     * @param maxSize maximum number of bytes of the PDU
+     * @return the PDU, or null if it is empty or bigger than maxSize
+     * @throws IOException if reading fails
+     */
+    public static byte[] readPdu(ParcelFileDescriptor pduFd, int maxSize) throws IOException {
+        final long statSize = pduFd.getStatSize();
+        if (statSize > maxSize) {
+            LogUtil.e("PDU read is too large: " + statSize);
+            return null;
+        }
+        // Not closed, the caller owns the descriptor
+        final InputStream in = new FileInputStream(pduFd.getFileDescriptor());
+        byte[] pdu = new byte[statSize > 0 ? (int) statSize : Math.min(CHUNK_SIZE, maxSize)];
+        int length = readFully(in, pdu, 0, pdu.length);
+        if (length == pdu.length) {
+            // Either the file has grown since its size was read, or its size is unknown:
+            // keep reading in chunks
+            final byte[] chunk = acquireBuffer();
+            try {
+                int count;
+                while ((count = in.read(chunk, 0, chunk.length)) > 0) {
+                    if (length + count > maxSize) {
+                        LogUtil.e("PDU read is too large");
+                        return null;
+                    }
+                    if (length + count > pdu.length) {
+                        final int capacity = (int) Math.min(
+                                Math.max((long) pdu.length * 2, length + count), maxSize);
+                        pdu = Arrays.copyOf(pdu, capacity);
+                    }
+                    System.arraycopy(chunk, 0, pdu, length, count);
+                    length += count;
+                }
+            } finally {
+                releaseBuffer(chunk);
+            }
+        }
+        if (length == 0) {
+            LogUtil.e("Read empty PDU");
+            return null;
+        }
+        return length == pdu.length ? pdu : Arrays.copyOf(pdu, length);
+    }
+
+    /**
+     * Copy the start of a file to a stream
+     *
+     * @param pduFd  the file to copy from its start, not closed
+     * @param length the number of bytes to copy
+     * @param out    the destination stream
+     * @throws IOException if the file is shorter than length or the copy fails
+     */
+    public static void copyPdu(ParcelFileDescriptor pduFd, int length, OutputStream out)
+            throws IOException {
+        rewind(pduFd);
+        final InputStream in = new FileInputStream(pduFd.getFileDescriptor());
+        final byte[] chunk = acquireBuffer();
+        try {
+            int remaining = length;
+            while (remaining > 0) {
+                final int count = in.read(chunk, 0, Math.min(chunk.length, remaining));
+                if (count < 0) {
+                    throw new IOException("PDU file truncated, " + remaining + " bytes missing");
+                }
+                out.write(chunk, 0, count);
+                remaining -= count;
+            }
+        } finally {
+            releaseBuffer(chunk);
+        }
+    }
+
+    /**
+     * Read the start of a file
+     *
+     * @param pduFd  the file to read from its start, not closed
+     * @param buffer the buffer to fill
+     * @return the number of bytes read, less than the buffer size if the file is shorter
+     * @throws IOException if reading fails
+     */
+    public static int readPrefix(ParcelFileDescriptor pduFd, byte[] buffer) throws IOException {
+        rewind(pduFd);
+        return readFully(new FileInputStream(pduFd.getFileDescriptor()), buffer, 0,
+                buffer.length);
+    }
+
+    /**
+     * Empty a file, so that it can be written again from its start
+     */
+    public static void truncate(ParcelFileDescriptor pduFd) throws IOException {
+        try {
+            Os.ftruncate(pduFd.getFileDescriptor(), 0);
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+        rewind(pduFd);
+    }
+
+    /**
+     * @return a stream writing to both streams, neither of which is closed by it
+     */
+    public static OutputStream tee(final OutputStream first, final OutputStream second) {
+        return new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                first.write(b);
+                second.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                first.write(b, off, len);
+                second.write(b, off, len);
+            }
+        };
+    }
+
+    /**
+     * Move a file back to its start, so that it can be read again
+     */
+    public static void rewind(ParcelFileDescriptor pduFd) throws IOException {
+        try {
+            Os.lseek(pduFd.getFileDescriptor(), 0, OsConstants.SEEK_SET);
+        } catch (ErrnoException e) {
+            throw e.rethrowAsIOException();
+        }
+    }
+
+    /**
+     * Read until the range is full or the end of the stream
+     *
+     * @return the number of bytes read
+     */
+    private static int readFully(InputStream in, byte[] buffer, int offset, int length)
+            throws IOException {
+        int total = 0;
+        while (total < length) {
+            final int count = in.read(buffer, offset + total, length - total);
+            if (count < 0) {
+                break;
+            }
+            total += count;
+        }
+        return total;
+    }
+}
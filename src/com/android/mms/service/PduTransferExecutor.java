@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.os.SystemClock;
+import android.util.ArrayMap;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Bounded thread pool transferring PDUs with the MMS apps' content providers.
+ *
+ * A content provider can block a transfer forever, and cancelling the task doesn't unblock the
+ * I/O, so the pool and its queue are bounded: hung transfers hold at most the pool threads, and
+ * further transfers are rejected instead of creating new threads. Transfers which outlive their
+ * timeout are logged with the stack of their thread, and counted until they finish. A
+ * {@link Closeable} result of such a transfer, e.g. an opened file, is closed since nobody
+ * waits for it anymore.
+ */
+public class PduTransferExecutor extends ThreadPoolExecutor {
+    private static final int POOL_SIZE = 4;
+    private static final int QUEUE_CAPACITY = 16;
+    // Idle workers exit after this long
+    private static final long KEEP_ALIVE_MILLIS = 30 * 1000;
+
+    // Upper bounds of the latency histogram buckets, the last bucket is unbounded
+    private static final long[] LATENCY_BUCKET_MILLIS = { 10, 50, 200, 1000, 5000, 30000 };
+
+    /**
+     * Statistics of one kind of transfer
+     */
+    private static class TransferStats {
+        final long[] mLatencyBuckets = new long[LATENCY_BUCKET_MILLIS.length + 1];
+        long mCompletedCount;
+        long mMaxLatencyMillis;
+        long mRejectedCount;
+        long mTimedOutCount;
+    }
+
+    /**
+     * A transfer, which knows its thread while it runs
+     */
+    private static class TransferTask<T> extends FutureTask<T> {
+        final String mName;
+        final long mSubmitTime;
+        volatile Thread mThread;
+        volatile long mStartTime;
+        // Whether the transfer outlived its timeout while running
+        volatile boolean mHung;
+
+        TransferTask(String name, Callable<T> callable) {
+            super(callable);
+            mName = name;
+            mSubmitTime = SystemClock.elapsedRealtime();
+        }
+
+        @Override
+        protected void set(T result) {
+            super.set(result);
+            if (isCancelled() && result instanceof Closeable) {
+                // The caller gave up on the transfer, don't leak what it produced
+                try {
+                    ((Closeable) result).close();
+                } catch (IOException e) {
+                    LogUtil.w("PDU transfer " + mName + ": failed to close late result", e);
+                }
+            }
+        }
+    }
+
+    // Guards the statistics
+    private final Object mLock = new Object();
+    private final Map<String, TransferStats> mStats = new ArrayMap<>();
+    // Transfers that timed out and are still running
+    private int mHungCount;
+
+    public PduTransferExecutor() {
+        super(POOL_SIZE, POOL_SIZE, KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(QUEUE_CAPACITY));
+        allowCoreThreadTimeOut(true);
+        setRejectedExecutionHandler(new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                if (r instanceof TransferTask) {
+                    synchronized (mLock) {
+                        getStatsLocked(((TransferTask<?>) r).mName).mRejectedCount++;
+                    }
+                }
+                throw new RejectedExecutionException("PDU transfer queue is full");
+            }
+        });
+    }
+
+    /**
+     * Run a transfer and wait for its result
+     *
+     * @param name      the kind of transfer, for statistics
+     * @param task      the transfer
+     * @param timeoutMs how long to wait for the transfer
+     * @return the result of the transfer, or null if it failed, timed out or was rejected
+     */
+    public <T> T executeAndWait(String name, Callable<T> task, long timeoutMs) {
+        final TransferTask<T> transfer = new TransferTask<>(name, task);
+        try {
+            execute(transfer);
+        } catch (RejectedExecutionException e) {
+            LogUtil.e("PDU transfer " + name + " rejected, active=" + getActiveCount()
+                    + " queued=" + getQueue().size() + " hung=" + getHungCount());
+            return null;
+        }
+        try {
+            return transfer.get(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            if (!transfer.cancel(true) && !transfer.isCancelled()) {
+                // Completed meanwhile, the result is still the caller's
+                try {
+                    return transfer.get();
+                } catch (Exception ex) {
+                    LogUtil.e("PDU transfer " + name + " failed", ex);
+                    return null;
+                }
+            }
+            onTransferTimedOut(transfer);
+        } catch (Exception e) {
+            LogUtil.e("PDU transfer " + name + " failed", e);
+            transfer.cancel(true);
+        }
+        return null;
+    }
+
+    private void onTransferTimedOut(TransferTask<?> transfer) {
+        final Thread thread;
+        synchronized (mLock) {
+            getStatsLocked(transfer.mName).mTimedOutCount++;
+            thread = transfer.mThread;
+            if (thread == null) {
+                LogUtil.e("PDU transfer " + transfer.mName + " timed out");
+                return;
+            }
+            transfer.mHung = true;
+            mHungCount++;
+        }
+        // The thread stays blocked until the provider returns, report where
+        final StringBuilder sb = new StringBuilder();
+        sb.append("PDU transfer ").append(transfer.mName).append(" hung on ")
+                .append(thread.getName()).append(" for ")
+                .append(SystemClock.elapsedRealtime() - transfer.mStartTime).append("ms");
+        for (StackTraceElement element : thread.getStackTrace()) {
+            sb.append("\n    at ").append(element);
+        }
+        LogUtil.w(sb.toString());
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
+        if (r instanceof TransferTask) {
+            final TransferTask<?> transfer = (TransferTask<?>) r;
+            transfer.mStartTime = SystemClock.elapsedRealtime();
+            transfer.mThread = t;
+        }
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        super.afterExecute(r, t);
+        if (!(r instanceof TransferTask)) {
+            return;
+        }
+        final TransferTask<?> transfer = (TransferTask<?>) r;
+        final long latencyMillis = SystemClock.elapsedRealtime() - transfer.mSubmitTime;
+        synchronized (mLock) {
+            transfer.mThread = null;
+            final TransferStats stats = getStatsLocked(transfer.mName);
+            stats.mCompletedCount++;
+            stats.mMaxLatencyMillis = Math.max(stats.mMaxLatencyMillis, latencyMillis);
+            int bucket = 0;
+            while (bucket < LATENCY_BUCKET_MILLIS.length
+                    && latencyMillis >= LATENCY_BUCKET_MILLIS[bucket]) {
+                bucket++;
+            }
+            stats.mLatencyBuckets[bucket]++;
+            if (transfer.mHung) {
+                // A timed out transfer finally returned
+                mHungCount--;
+                LogUtil.i("PDU transfer " + transfer.mName + " returned after "
+                        + latencyMillis + "ms");
+            }
+        }
+    }
+
+    private int getHungCount() {
+        synchronized (mLock) {
+            return mHungCount;
+        }
+    }
+
+    private TransferStats getStatsLocked(String name) {
+        TransferStats stats = mStats.get(name);
+        if (stats == null) {
+            stats = new TransferStats();
+            mStats.put(name, stats);
+        }
+        return stats;
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.println(prefix + "PDU transfers: active=" + getActiveCount()
+                    + " queued=" + getQueue().size()
+                    + " pool=" + getPoolSize() + "/" + POOL_SIZE
+                    + " hung=" + mHungCount);
+            for (Map.Entry<String, TransferStats> entry : mStats.entrySet()) {
+                final TransferStats stats = entry.getValue();
+                final StringBuilder sb = new StringBuilder();
+                sb.append(prefix).append("  ").append(entry.getKey())
+                        .append(": completed=").append(stats.mCompletedCount)
+                        .append(" rejected=").append(stats.mRejectedCount)
+                        .append(" timedOut=").append(stats.mTimedOutCount)
+                        .append(" maxLatency=").append(stats.mMaxLatencyMillis).append("ms")
+                        .append(" latency=");
+                for (int i = 0; i < stats.mLatencyBuckets.length; i++) {
+                    sb.append(i < LATENCY_BUCKET_MILLIS.length
+                            ? ("<" + LATENCY_BUCKET_MILLIS[i] + "ms:")
+                            : (">=" + LATENCY_BUCKET_MILLIS[i - 1] + "ms:"))
+                            .append(stats.mLatencyBuckets[i]).append(' ');
+                }
+                pw.println(sb.toString().trim());
+            }
+        }
+    }
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread pool running MMS requests, which picks queued requests by priority class instead of
+ * in submission order.
+ *
+ * Requests age while they wait: a request is ordered by its submission time plus a delay that
+ * depends on its priority class, so a lower class request eventually runs ahead of newer
+ * higher class ones and can't be starved. The order only holds within a pool: MmsService runs
+ * sends and downloads on separate pools, so a send never waits for a download's worker, and the
+ * classes order the interactive and background sends against each other.
+ *
+ * The pool size adapts to the load. Workers spend most of their time blocked on the MMS network
+ * or on HTTP I/O, so when requests wait in the queue while most workers are blocked, the pool
+ * grows; when nothing has been waiting for a while it shrinks back. While requests are queued
+ * the wait is checked again periodically, since with every worker blocked nothing else would
+ * notice it. Idle workers time out, so no thread is kept around between bursts.
+ */
+public class PriorityRequestExecutor extends ThreadPoolExecutor {
+    // How much later than an interactive request a request of each priority class is ordered,
+    // indexed by MmsRequest.PRIORITY_*
+    private static final long[] PRIORITY_AGING_OFFSET_MILLIS = {
+            0,              // PRIORITY_INTERACTIVE
+            10 * 1000,      // PRIORITY_DOWNLOAD
+            30 * 1000,      // PRIORITY_BACKGROUND
+    };
+
+    // A request waiting longer than this for a worker is a sign that the pool is too small
+    private static final long GROW_QUEUE_WAIT_MILLIS = 2 * 1000;
+    // Grow only if at least this percentage of the busy workers is blocked on network or I/O,
+    // i.e. more threads would actually make progress
+    private static final int GROW_BLOCKED_PERCENT = 75;
+    // Shrink after no request needed a bigger pool for this long
+    private static final long SHRINK_IDLE_MILLIS = 60 * 1000;
+    // Idle workers exit after this long
+    private static final long KEEP_ALIVE_MILLIS = 30 * 1000;
+
+    private static final AtomicLong sSequence = new AtomicLong();
+
+    // Checks the wait of the queued requests of all the pools, while they have some
+    private static final ScheduledThreadPoolExecutor sGrowChecker =
+            new ScheduledThreadPoolExecutor(1);
+
+    static {
+        sGrowChecker.setKeepAliveTime(KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS);
+        sGrowChecker.allowCoreThreadTimeOut(true);
+    }
+
+    // The executor whose worker is the current thread, if any
+    private static final ThreadLocal<PriorityRequestExecutor> sCurrentExecutor =
+            new ThreadLocal<>();
+
+    private final String mName;
+    // Guards the statistics and the pool sizing state below
+    private final Object mLock = new Object();
+    // Bounds of the pool size
+    private int mMinPoolSize;
+    private int mMaxPoolSize;
+    // Number of workers currently blocked on network or I/O
+    private int mBlockedCount;
+    // When a request last waited long enough to ask for a bigger pool
+    private long mLastBusyTime;
+    private int mGrowCount;
+    private int mShrinkCount;
+    // Whether a check of the queued requests is scheduled
+    private boolean mGrowCheckScheduled;
+    // Statistics per priority class
+    private final long[] mStartedCount = new long[PRIORITY_AGING_OFFSET_MILLIS.length];
+    private final long[] mTotalWaitMillis = new long[PRIORITY_AGING_OFFSET_MILLIS.length];
+    private final long[] mMaxWaitMillis = new long[PRIORITY_AGING_OFFSET_MILLIS.length];
+
+    /**
+     * A queued MMS request task ordered by its aged priority
+     */
+    private static class RequestTask implements Runnable, Comparable<RequestTask> {
+        final Runnable mTask;
+        final int mPriority;
+        final long mEnqueueTime;
+        final long mSortKey;
+        final long mSequence;
+
+        RequestTask(Runnable task, int priority) {
+            mTask = task;
+            mPriority = priority;
+            mEnqueueTime = SystemClock.elapsedRealtime();
+            mSortKey = mEnqueueTime + PRIORITY_AGING_OFFSET_MILLIS[priority];
+            mSequence = sSequence.getAndIncrement();
+        }
+
+        @Override
+        public void run() {
+            mTask.run();
+        }
+
+        @Override
+        public int compareTo(RequestTask other) {
+            if (mSortKey != other.mSortKey) {
+                return mSortKey < other.mSortKey ? -1 : 1;
+            }
+            // Same aged priority: keep submission order
+            return Long.compare(mSequence, other.mSequence);
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name        The name of the queue, for dumping
+     * @param poolSize    The initial number of threads running requests
+     * @param minPoolSize The lower bound of the pool size
+     * @param maxPoolSize The upper bound of the pool size
+     */
+    public PriorityRequestExecutor(String name, int poolSize, int minPoolSize,
+            int maxPoolSize) {
+        super(poolSize, poolSize, KEEP_ALIVE_MILLIS, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>());
+        mName = name;
+        mMinPoolSize = minPoolSize;
+        mMaxPoolSize = maxPoolSize;
+        allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Update the bounds of the pool size, e.g. from carrier config
+     *
+     * @param minPoolSize The lower bound of the pool size
+     * @param maxPoolSize The upper bound of the pool size
+     */
+    public void setPoolSizeBounds(int minPoolSize, int maxPoolSize) {
+        if (minPoolSize < 1 || maxPoolSize < minPoolSize) {
+            LogUtil.w("Invalid " + mName + " pool size bounds "
+                    + minPoolSize + "-" + maxPoolSize);
+            return;
+        }
+        synchronized (mLock) {
+            if (minPoolSize == mMinPoolSize && maxPoolSize == mMaxPoolSize) {
+                return;
+            }
+            mMinPoolSize = minPoolSize;
+            mMaxPoolSize = maxPoolSize;
+            final int size = Math.max(minPoolSize, Math.min(maxPoolSize, getCorePoolSize()));
+            resizeLocked(size);
+        }
+    }
+
+    /**
+     * Mark the current worker as blocked on network or I/O. Must be paired with
+     * {@link #endBlocking()}. Does nothing when not called from a worker of this class.
+     */
+    public static void beginBlocking() {
+        final PriorityRequestExecutor executor = sCurrentExecutor.get();
+        if (executor != null) {
+            synchronized (executor.mLock) {
+                executor.mBlockedCount++;
+                // Requests may be stuck in the queue while every worker is blocked
+                executor.maybeGrowForQueueLocked();
+            }
+        }
+    }
+
+    /**
+     * Mark the current worker as no longer blocked
+     */
+    public static void endBlocking() {
+        final PriorityRequestExecutor executor = sCurrentExecutor.get();
+        if (executor != null) {
+            synchronized (executor.mLock) {
+                executor.mBlockedCount--;
+            }
+        }
+    }
+
+    /**
+     * Queue a task running an MMS request
+     *
+     * @param priority The priority class of the request, one of MmsRequest.PRIORITY_*
+     * @param task     The task to run
+     */
+    public void execute(int priority, Runnable task) {
+        if (priority < 0 || priority >= PRIORITY_AGING_OFFSET_MILLIS.length) {
+            LogUtil.w("Invalid request priority " + priority + ", run as background");
+            priority = MmsRequest.PRIORITY_BACKGROUND;
+        }
+        super.execute(new RequestTask(task, priority));
+        synchronized (mLock) {
+            maybeGrowForQueueLocked();
+            scheduleGrowCheckLocked();
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (task instanceof RequestTask) {
+            super.execute(task);
+        } else {
+            // The priority queue can only order RequestTasks
+            execute(MmsRequest.PRIORITY_BACKGROUND, task);
+        }
+    }
+
+    @Override
+    protected void beforeExecute(Thread t, Runnable r) {
+        super.beforeExecute(t, r);
+        sCurrentExecutor.set(this);
+        if (r instanceof RequestTask) {
+            final RequestTask task = (RequestTask) r;
+            final long now = SystemClock.elapsedRealtime();
+            final long waitMillis = now - task.mEnqueueTime;
+            synchronized (mLock) {
+                mStartedCount[task.mPriority]++;
+                mTotalWaitMillis[task.mPriority] += waitMillis;
+                mMaxWaitMillis[task.mPriority] =
+                        Math.max(mMaxWaitMillis[task.mPriority], waitMillis);
+                if (waitMillis >= GROW_QUEUE_WAIT_MILLIS) {
+                    mLastBusyTime = now;
+                    maybeGrowLocked();
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void afterExecute(Runnable r, Throwable t) {
+        super.afterExecute(r, t);
+        sCurrentExecutor.remove();
+        synchronized (mLock) {
+            maybeShrinkLocked();
+        }
+    }
+
+    /**
+     * Grow the pool if the next queued request has been waiting too long
+     */
+    private void maybeGrowForQueueLocked() {
+        final Runnable next = getQueue().peek();
+        if (next instanceof RequestTask) {
+            final long now = SystemClock.elapsedRealtime();
+            if (now - ((RequestTask) next).mEnqueueTime >= GROW_QUEUE_WAIT_MILLIS) {
+                mLastBusyTime = now;
+                maybeGrowLocked();
+            }
+        }
+    }
+
+    /**
+     * Check the queue again once its next request may have waited too long, if it has any
+     */
+    private void scheduleGrowCheckLocked() {
+        if (mGrowCheckScheduled || isShutdown()) {
+            return;
+        }
+        final Runnable next = getQueue().peek();
+        if (!(next instanceof RequestTask)) {
+            return;
+        }
+        final long waitMillis = SystemClock.elapsedRealtime() - ((RequestTask) next).mEnqueueTime;
+        // Poll at the threshold period once the request waited that long but the pool can't
+        // grow yet, e.g. because the workers are not blocked
+        final long delayMillis = waitMillis < GROW_QUEUE_WAIT_MILLIS
+                ? GROW_QUEUE_WAIT_MILLIS - waitMillis : GROW_QUEUE_WAIT_MILLIS;
+        mGrowCheckScheduled = true;
+        sGrowChecker.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (mLock) {
+                    mGrowCheckScheduled = false;
+                    maybeGrowForQueueLocked();
+                    scheduleGrowCheckLocked();
+                }
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Add a worker if requests keep waiting while the busy workers are mostly blocked
+     */
+    private void maybeGrowLocked() {
+        final int coreSize = getCorePoolSize();
+        if (coreSize >= mMaxPoolSize || getQueue().isEmpty()) {
+            return;
+        }
+        final int busy = Math.max(getActiveCount(), 1);
+        if (mBlockedCount * 100 < busy * GROW_BLOCKED_PERCENT) {
+            return;
+        }
+        mGrowCount++;
+        LogUtil.i("Grow " + mName + " pool to " + (coreSize + 1) + ", blocked=" + mBlockedCount
+                + ", queued=" + getQueue().size());
+        resizeLocked(coreSize + 1);
+    }
+
+    /**
+     * Remove a worker if no request has been waiting for a while
+     */
+    private void maybeShrinkLocked() {
+        final int coreSize = getCorePoolSize();
+        if (coreSize <= mMinPoolSize || !getQueue().isEmpty()
+                || SystemClock.elapsedRealtime() - mLastBusyTime < SHRINK_IDLE_MILLIS) {
+            return;
+        }
+        mShrinkCount++;
+        LogUtil.i("Shrink " + mName + " pool to " + (coreSize - 1));
+        resizeLocked(coreSize - 1);
+        // Wait another period before shrinking further
+        mLastBusyTime = SystemClock.elapsedRealtime();
+    }
+
+    private void resizeLocked(int size) {
+        if (size > getMaximumPoolSize()) {
+            setMaximumPoolSize(size);
+            setCorePoolSize(size);
+        } else {
+            setCorePoolSize(size);
+            setMaximumPoolSize(size);
+        }
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        synchronized (mLock) {
+            pw.println(prefix + mName + " queue: active=" + getActiveCount()
+                    + " blocked=" + mBlockedCount
+                    + " queued=" + getQueue().size()
+                    + " pool=" + getPoolSize() + "/" + getCorePoolSize()
+                    + " bounds=" + mMinPoolSize + "-" + mMaxPoolSize
+                    + " grown=" + mGrowCount + " shrunk=" + mShrinkCount);
+            for (int i = 0; i < mStartedCount.length; i++) {
+                pw.println(prefix + "  priority=" + i
+                        + " started=" + mStartedCount[i]
+                        + " avgWait=" + (mStartedCount[i] > 0
+                                ? (mTotalWaitMillis[i] / mStartedCount[i]) : 0) + "ms"
+                        + " maxWait=" + mMaxWaitMillis[i] + "ms");
+            }
+        }
+    }
+}
@@ -24,6 +24,7 @@ import android.content.Intent;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
 import android.os.RemoteException;
 import android.provider.Telephony;
 import android.service.carrier.CarrierMessagingService;
@@ -51,14 +52,32 @@ import com.google.android.mms.pdu.SendReq;
 import com.google.android.mms.util.SqliteWrapper;
 import com.android.mms.service.PhoneUtils;
 
+import java.io.IOException;
+import java.io.OutputStream;
+
 /**
  * Request to send an MMS
  */
 public class SendRequest extends MmsRequest {
     private final Uri mPduUri;
+    // The PDU in memory, only read when it has to be parsed or rewritten as a whole, or when
+    // its size is unknown
     private byte[] mPduData;
+    // The caller's PDU file, streamed to the MMSC while mPduData is null
+    private ParcelFileDescriptor mPduFd;
+    private int mPduLength;
+    // The parse of the PDU shared by the attempts and the persistence, only the headers until
+    // the parts are needed
+    private GenericPdu mParsedPdu;
+    // Whether mParsedPdu is the parse of the whole PDU in mPduData
+    private boolean mParsedPduComplete;
+    // Whether the PDU has been checked for emergency recipients and had its destination
+    // addresses updated, which the attempts do once
+    private boolean mPduPrepared;
     private final String mLocationUrl;
     private final PendingIntent mSentIntent;
+    // The priority class in the send queue
+    private final int mPriority;
 
     public SendRequest(RequestManager manager, int subId, Uri contentUri, String locationUrl,
             PendingIntent sentIntent, String creator, Bundle configOverrides, Context context) {
@@ -67,6 +86,10 @@ public class SendRequest extends MmsRequest {
         mPduData = null;
         mLocationUrl = locationUrl;
         mSentIntent = sentIntent;
+        // Messages the service has to write for the creator come from apps other than the
+        // default SMS app, which are not sent interactively by the user
+        mPriority = SmsApplication.shouldWriteMessageForPackage(creator, context)
+                ? PRIORITY_BACKGROUND : PRIORITY_INTERACTIVE;
     }
 
     @Override
@@ -84,12 +107,17 @@ public class SendRequest extends MmsRequest {
             LogUtil.e(requestId, "MMS network is not ready!");
             throw new MmsHttpException(0/*statusCode*/, "MMS network is not ready");
         }
-        final GenericPdu parsedPdu = parsePdu();
-        notifyIfEmergencyContactNoThrow(parsedPdu);
-        updateDestinationAddress(parsedPdu);
+        if (!mPduPrepared) {
+            mPduPrepared = true;
+            final GenericPdu parsedPdu = parsePdu();
+            notifyIfEmergencyContactNoThrow(parsedPdu);
+            updateDestinationAddress(parsedPdu);
+        }
+        final MmsHttpClient.RequestBody body = mPduData != null
+                ? new MmsHttpClient.ByteArrayRequestBody(mPduData) : new PduFileRequestBody();
         return mmsHttpClient.execute(
                 mLocationUrl != null ? mLocationUrl : apn.getMmscUrl(),
-                mPduData,
+                body,
                 MmsHttpClient.METHOD_POST,
                 apn.isProxySet(),
                 apn.getProxyAddress(),
@@ -101,22 +129,137 @@ public class SendRequest extends MmsRequest {
                 firstTry);
     }
 
+    /**
+     * Parse the headers of the PDU once for the request, which is all the attempts need. The
+     * parts are only decoded when the addresses have to be rewritten or the message persisted,
+     * see {@link #parseWholePdu()}.
+     *
+     * @return the parsed PDU, without its parts unless they had to be parsed already, or null if
+     *         it can't be read or parsed
+     */
     private GenericPdu parsePdu() {
+        if (mParsedPdu != null) {
+            return mParsedPdu;
+        }
         final String requestId = getRequestId();
         try {
-            if (mPduData == null) {
-                LogUtil.w(requestId, "Empty PDU raw data");
-                return null;
-            }
             final boolean supportContentDisposition =
                     mMmsConfig.getBoolean(SmsManager.MMS_CONFIG_SUPPORT_MMS_CONTENT_DISPOSITION);
-            return new PduParser(mPduData, supportContentDisposition).parse();
+            if (mPduData == null && mPduFd != null) {
+                // The recipients are in the headers, no need to read the whole PDU
+                final GenericPdu pdu = parsePduHeaders(supportContentDisposition);
+                if (pdu != null) {
+                    mParsedPdu = pdu;
+                    return pdu;
+                }
+                LogUtil.d(requestId, "PDU headers not parsed from the file start, read all");
+                materializePdu();
+            } else if (mPduData != null) {
+                final GenericPdu pdu = PduHeaderParser.parseHeadersOnly(mPduData,
+                        mPduData.length, supportContentDisposition);
+                if (pdu != null) {
+                    mParsedPdu = pdu;
+                    return pdu;
+                }
+            }
+            return parseWholePdu();
         } catch (final Exception e) {
             LogUtil.w(requestId, "Failed to parse PDU raw data");
         }
         return null;
     }
 
+    /**
+     * Parse the whole PDU once for the request, reading the streamed PDU file in memory
+     *
+     * @return the parsed PDU, or null if it can't be read or parsed
+     */
+    private GenericPdu parseWholePdu() {
+        if (mParsedPduComplete) {
+            return mParsedPdu;
+        }
+        final String requestId = getRequestId();
+        if (!materializePdu()) {
+            LogUtil.w(requestId, "Empty PDU raw data");
+            return null;
+        }
+        final boolean supportContentDisposition =
+                mMmsConfig.getBoolean(SmsManager.MMS_CONFIG_SUPPORT_MMS_CONTENT_DISPOSITION);
+        final GenericPdu pdu = new PduParser(mPduData, supportContentDisposition).parse();
+        if (pdu == null) {
+            LogUtil.w(requestId, "Failed to parse PDU raw data");
+            return null;
+        }
+        mParsedPdu = pdu;
+        mParsedPduComplete = true;
+        return pdu;
+    }
+
+    /**
+     * Parse the headers at the start of the streamed PDU file
+     *
+     * @return the PDU without its parts, or null if its headers don't fit in a chunk
+     */
+    private GenericPdu parsePduHeaders(boolean supportContentDisposition) throws IOException {
+        final byte[] prefix = PduStreams.acquireBuffer();
+        try {
+            final int length = PduStreams.readPrefix(mPduFd, prefix);
+            return PduHeaderParser.parseHeadersOnly(prefix, length, supportContentDisposition);
+        } finally {
+            PduStreams.releaseBuffer(prefix);
+        }
+    }
+
+    /**
+     * Read the streamed PDU file in memory, for the paths that need the whole PDU
+     *
+     * @return true if the PDU is in mPduData
+     */
+    private boolean materializePdu() {
+        if (mPduData != null) {
+            return true;
+        }
+        if (mPduFd == null) {
+            return false;
+        }
+        try {
+            PduStreams.rewind(mPduFd);
+            mPduData = PduStreams.readPdu(mPduFd, mPduLength);
+        } catch (IOException e) {
+            LogUtil.e(getRequestId(), "Failed to read PDU file", e);
+        }
+        if (mPduData == null) {
+            return false;
+        }
+        closePduFd();
+        return true;
+    }
+
+    private void closePduFd() {
+        if (mPduFd != null) {
+            try {
+                mPduFd.close();
+            } catch (IOException e) {
+            }
+            mPduFd = null;
+        }
+    }
+
+    /**
+     * The request body streamed from the caller's PDU file
+     */
+    private final class PduFileRequestBody implements MmsHttpClient.RequestBody {
+        @Override
+        public int getLength() {
+            return mPduLength;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            PduStreams.copyPdu(mPduFd, mPduLength, out);
+        }
+    }
+
     /**
      * If the MMS is being sent to an emergency number, the blocked number provider is notified
      * so that it can disable number blocking.
@@ -151,11 +294,24 @@ public class SendRequest extends MmsRequest {
         return mSentIntent;
     }
 
+    Uri getPduUri() {
+        return mPduUri;
+    }
+
+    String getLocationUrl() {
+        return mLocationUrl;
+    }
+
     @Override
     protected int getQueueType() {
         return MmsService.QUEUE_INDEX_SEND;
     }
 
+    @Override
+    protected int getPriority() {
+        return mPriority;
+    }
+
     @Override
     protected Uri persistIfRequired(Context context, int result, byte[] response) {
         final String requestId = getRequestId();
@@ -164,16 +320,12 @@ public class SendRequest extends MmsRequest {
             return null;
         }
         LogUtil.d(requestId, "persistIfRequired");
-        if (mPduData == null) {
-            LogUtil.e(requestId, "persistIfRequired: empty PDU");
-            return null;
-        }
         final long identity = Binder.clearCallingIdentity();
         try {
             final boolean supportContentDisposition =
                     mMmsConfig.getBoolean(SmsManager.MMS_CONFIG_SUPPORT_MMS_CONTENT_DISPOSITION);
-            // Persist the request PDU first
-            GenericPdu pdu = (new PduParser(mPduData, supportContentDisposition)).parse();
+            // Persist the request PDU first, reusing the parse of the attempts
+            GenericPdu pdu = parseWholePdu();
             if (pdu == null) {
                 LogUtil.e(requestId, "persistIfRequired: can't parse input PDU");
                 return null;
@@ -257,15 +409,32 @@ public class SendRequest extends MmsRequest {
             return;
         }
 
-       boolean isUpdated = updateDestinationAddressPerType((SendReq)pdu, PduHeaders.TO);
-       isUpdated = updateDestinationAddressPerType((SendReq)pdu, PduHeaders.CC) || isUpdated;
-       isUpdated = updateDestinationAddressPerType((SendReq)pdu, PduHeaders.BCC) || isUpdated;
-
-       if (isUpdated) {
-           mPduData = new PduComposer(mContext, (SendReq)pdu).make();
+       if (!updateDestinationAddresses((SendReq) pdu)) {
+           return;
        }
+       SendReq sendReq = (SendReq) pdu;
+       if (!mParsedPduComplete) {
+           // Only the headers of the PDU were parsed, the whole PDU is needed to compose the
+           // updated one
+           final GenericPdu fullPdu = parseWholePdu();
+           if (!(fullPdu instanceof SendReq)) {
+               LogUtil.e(requestId, "updateDestinationAddress: can't read the whole PDU");
+               return;
+           }
+           sendReq = (SendReq) fullPdu;
+           updateDestinationAddresses(sendReq);
+       }
+       // The updated message stays the parse of the recomposed PDU
+       mPduData = new PduComposer(mContext, sendReq).make();
    }
 
+    private boolean updateDestinationAddresses(SendReq pdu) {
+        boolean isUpdated = updateDestinationAddressPerType(pdu, PduHeaders.TO);
+        isUpdated = updateDestinationAddressPerType(pdu, PduHeaders.CC) || isUpdated;
+        isUpdated = updateDestinationAddressPerType(pdu, PduHeaders.BCC) || isUpdated;
+        return isUpdated;
+    }
+
     private boolean updateDestinationAddressPerType(SendReq pdu, int type) {
         boolean isUpdated = false;
         EncodedStringValue[] recipientNumbers = null;
@@ -323,14 +492,51 @@ public class SendRequest extends MmsRequest {
      * @return true if pdu read successfully
      */
     private boolean readPduFromContentUri() {
-        if (mPduData != null) {
+        if (mPduData != null || mPduFd != null) {
             return true;
         }
         final int bytesTobeRead = mMmsConfig.getInt(SmsManager.MMS_CONFIG_MAX_MESSAGE_SIZE);
+        if (openPduForStreaming(bytesTobeRead)) {
+            return true;
+        }
         mPduData = mRequestManager.readPduFromContentUri(mPduUri, bytesTobeRead);
         return (mPduData != null);
     }
 
+    /**
+     * Keep the PDU file open to stream it to the MMSC, which needs its size upfront
+     *
+     * @return true if the PDU will be streamed, false if it has to be read in memory
+     */
+    private boolean openPduForStreaming(int maxSize) {
+        final ParcelFileDescriptor pduFd = mRequestManager.openPduFromContentUri(mPduUri);
+        if (pduFd == null) {
+            return false;
+        }
+        final long size = pduFd.getStatSize();
+        if (size > 0 && size <= maxSize) {
+            mPduFd = pduFd;
+            mPduLength = (int) size;
+            return true;
+        }
+        // A pipe, or a PDU too large which the in-memory read reports
+        try {
+            pduFd.close();
+        } catch (IOException e) {
+        }
+        return false;
+    }
+
+    @Override
+    public void processResult(Context context, int result, byte[] response,
+            int httpStatusCode) {
+        try {
+            super.processResult(context, result, response, httpStatusCode);
+        } finally {
+            closePduFd();
+        }
+    }
+
     /**
      * Transfer the received response to the caller (for send requests the pdu is small and can
      *  just include bytes as extra in the "returned" intent).
@@ -376,6 +582,57 @@ public class SendRequest extends MmsRequest {
         }
     }
 
+    @Override
+    protected boolean isResultPersisted() {
+        return SmsApplication.shouldWriteMessageForPackage(mCreator, mContext);
+    }
+
+    /**
+     * Store the message in the failed box if the service writes it, otherwise move it out of
+     * the outbox of the caller, where it is stored under the transaction ID of the PDU
+     */
+    @Override
+    protected void markFailedInProvider(Context context) {
+        final String requestId = getRequestId();
+        if (isResultPersisted()) {
+            try {
+                if (readPduFromContentUri()) {
+                    persistIfRequired(context, SmsManager.MMS_ERROR_UNSPECIFIED,
+                            null/*response*/);
+                }
+            } finally {
+                closePduFd();
+            }
+            return;
+        }
+        final GenericPdu pdu = readPduFromContentUri() ? parsePdu() : null;
+        closePduFd();
+        if (!(pdu instanceof SendReq)) {
+            LogUtil.e(requestId, "markFailedInProvider: can't parse input PDU");
+            return;
+        }
+        final byte[] transactionId = ((SendReq) pdu).getTransactionId();
+        if (transactionId == null) {
+            LogUtil.e(requestId, "markFailedInProvider: no transaction ID");
+            return;
+        }
+        final ContentValues values = new ContentValues(1);
+        values.put(Telephony.Mms.MESSAGE_BOX, Telephony.Mms.MESSAGE_BOX_FAILED);
+        final long identity = Binder.clearCallingIdentity();
+        try {
+            final int count = SqliteWrapper.update(context, context.getContentResolver(),
+                    Telephony.Mms.CONTENT_URI, values,
+                    Telephony.Mms.MESSAGE_BOX + "=? AND " + Telephony.Mms.TRANSACTION_ID + "=?",
+                    new String[] {
+                            Integer.toString(Telephony.Mms.MESSAGE_BOX_OUTBOX),
+                            PduPersister.toIsoString(transactionId)
+                    });
+            LogUtil.i(requestId, "markFailedInProvider: " + count + " message(s) failed");
+        } finally {
+            Binder.restoreCallingIdentity(identity);
+        }
+    }
+
     /**
      * Sends the MMS through through the carrier app.
      */
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import android.os.SystemClock;
+import android.telephony.SubscriptionManager;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+
+/**
+ * Pending MMS requests waiting for their SIM, kept in one ordered lane per subscription.
+ *
+ * Requests of the same subscription are never reordered, but a request for one SIM does not
+ * block later requests for another SIM. When the running SIM drains, the scheduler switches to
+ * the lane whose head request has been waiting the longest.
+ *
+ * This class is not thread-safe, callers must hold the MmsService lock.
+ */
+public class SimRequestLanes {
+    // Once the head of another lane has waited this long, new requests for the running SIM
+    // are parked in their own lane so that the running SIM drains and the lanes can switch.
+    private static final long MAX_LANE_WAIT_MILLIS = 60 * 1000;
+
+    private static class PendingRequest {
+        final MmsRequest mRequest;
+        final long mEnqueueTime;
+
+        PendingRequest(MmsRequest request, long enqueueTime) {
+            mRequest = request;
+            mEnqueueTime = enqueueTime;
+        }
+    }
+
+    private static class Lane {
+        final ArrayDeque<PendingRequest> mQueue = new ArrayDeque<>();
+        // Statistics, kept for the lifetime of the service
+        int mMaxDepth;
+        int mDequeuedCount;
+        long mTotalWaitMillis;
+        long mMaxWaitMillis;
+    }
+
+    private final SparseArray<Lane> mLanes = new SparseArray<>();
+    // Total number of requests in all lanes
+    private int mSize;
+
+    /**
+     * Append a request to the lane of its subscription
+     *
+     * @param request the request to park
+     */
+    public void add(MmsRequest request) {
+        final int subId = request.getSubId();
+        Lane lane = mLanes.get(subId);
+        if (lane == null) {
+            lane = new Lane();
+            mLanes.put(subId, lane);
+        }
+        lane.mQueue.add(new PendingRequest(request, SystemClock.elapsedRealtime()));
+        lane.mMaxDepth = Math.max(lane.mMaxDepth, lane.mQueue.size());
+        mSize++;
+    }
+
+    /**
+     * Remove the head request of a lane
+     *
+     * @param subId the subscription of the lane
+     * @return the head request, or null if the lane is empty
+     */
+    public MmsRequest poll(int subId) {
+        final Lane lane = mLanes.get(subId);
+        if (lane == null) {
+            return null;
+        }
+        final PendingRequest pending = lane.mQueue.poll();
+        if (pending == null) {
+            return null;
+        }
+        mSize--;
+        final long waitMillis = SystemClock.elapsedRealtime() - pending.mEnqueueTime;
+        lane.mDequeuedCount++;
+        lane.mTotalWaitMillis += waitMillis;
+        lane.mMaxWaitMillis = Math.max(lane.mMaxWaitMillis, waitMillis);
+        LogUtil.d(pending.mRequest.toString(), "Leaving lane of subId " + subId + " after "
+                + waitMillis + "ms, depth=" + lane.mQueue.size());
+        return pending.mRequest;
+    }
+
+    /**
+     * @return the subscription whose lane head has been waiting the longest, or
+     *         {@link SubscriptionManager#INVALID_SUBSCRIPTION_ID} if all lanes are empty
+     */
+    public int nextSubId() {
+        int subId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+        long oldest = Long.MAX_VALUE;
+        for (int i = 0; i < mLanes.size(); i++) {
+            final PendingRequest head = mLanes.valueAt(i).mQueue.peek();
+            if (head != null && head.mEnqueueTime < oldest) {
+                oldest = head.mEnqueueTime;
+                subId = mLanes.keyAt(i);
+            }
+        }
+        return subId;
+    }
+
+    /**
+     * Check whether the lane of another subscription has waited too long for the running one
+     *
+     * @param runningSubId the subscription currently using the MMS network
+     * @return true if new requests of the running subscription should wait in their lane
+     */
+    public boolean isStarving(int runningSubId) {
+        final long now = SystemClock.elapsedRealtime();
+        for (int i = 0; i < mLanes.size(); i++) {
+            if (mLanes.keyAt(i) == runningSubId) {
+                continue;
+            }
+            final PendingRequest head = mLanes.valueAt(i).mQueue.peek();
+            if (head != null && now - head.mEnqueueTime >= MAX_LANE_WAIT_MILLIS) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param subId the subscription of the lane
+     * @return the number of requests waiting in the lane
+     */
+    public int depth(int subId) {
+        final Lane lane = mLanes.get(subId);
+        return lane != null ? lane.mQueue.size() : 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        final long now = SystemClock.elapsedRealtime();
+        pw.println(prefix + "SIM request lanes: pending=" + mSize);
+        for (int i = 0; i < mLanes.size(); i++) {
+            final Lane lane = mLanes.valueAt(i);
+            final PendingRequest head = lane.mQueue.peek();
+            pw.println(prefix + "  subId=" + mLanes.keyAt(i)
+                    + " depth=" + lane.mQueue.size()
+                    + " maxDepth=" + lane.mMaxDepth
+                    + " headWait=" + (head != null ? (now - head.mEnqueueTime) : 0) + "ms"
+                    + " dequeued=" + lane.mDequeuedCount
+                    + " avgWait=" + (lane.mDequeuedCount > 0
+                            ? (lane.mTotalWaitMillis / lane.mDequeuedCount) : 0) + "ms"
+                    + " maxWait=" + lane.mMaxWaitMillis + "ms");
+        }
+    }
+}
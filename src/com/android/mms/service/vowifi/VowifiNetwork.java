@@ -6,6 +6,7 @@ import android.util.Log;
 import android.os.Parcel;
 
 import java.io.IOException;
+import java.net.Inet4Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
@@ -58,6 +59,8 @@ public class VowifiNetwork implements Parcelable {
 
     private VowifiSocketFactory mVowifiSocketFactory = null;
     private HttpURLConnectionFactory mConnectionFactory = null;
+    // Resolves the hosts of the connections instead of getAllByName() when set
+    private volatile Dns mDns = null;
 
     public enum State {
         CONNECTING, CONNECTED, DISCONNECTED, UNKNOWN
@@ -277,6 +280,15 @@ public class VowifiNetwork implements Parcelable {
     };
 
 
+    /**
+     * Set the resolver of the hosts of the connections opened on this network, e.g. a cache.
+     *
+     * @param dns the resolver, or null to resolve with {@link #getAllByName(String)}
+     */
+    public void setDns(Dns dns) {
+        mDns = dns;
+    }
+
     /**
      * Opens the specified {@link URL} on this {@code VowifiNetwork}, such that all traffic will
      * be sent on this Network. The URL protocol must be {@code HTTP} or {@code HTTPS}.
@@ -302,6 +314,21 @@ public class VowifiNetwork implements Parcelable {
      * @see java.net.URL#openConnection()
      */
     public URLConnection openConnection(URL url, java.net.Proxy proxy) throws IOException {
+        return openConnection(url, getSocketFactory(), proxy);
+    }
+
+    /**
+     * Opens the specified {@link URL} on this {@code VowifiNetwork} like
+     * {@link #openConnection(URL, java.net.Proxy)}, with the sockets created by a factory
+     * wrapping {@link #getSocketFactory()}, e.g. to keep track of them.
+     *
+     * @param socketFactory the factory of the sockets, which must bind them to this network
+     * @param proxy the proxy through which the connection will be established.
+     * @return a {@code URLConnection} to the resource referred to by this URL.
+     * @throws IOException if an error occurs while opening the connection.
+     */
+    public URLConnection openConnection(URL url, SocketFactory socketFactory,
+            java.net.Proxy proxy) throws IOException {
         if (mConnectionFactory == null) {
             // Set configuration on the HttpURLConnectionFactory that will be good for all
             // connections created by this Network. Configuration that might vary is left
@@ -310,6 +337,10 @@ public class VowifiNetwork implements Parcelable {
             urlConnectionFactory.setDns(new Dns() { // Let traffic go via dnsLookup
                 @Override
                 public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+                    final Dns dns = mDns;
+                    if (dns != null) {
+                        return dns.lookup(hostname);
+                    }
                     Log.d(TAG, "Dns lookup, getAllByName for '" + hostname + "'.");
                     InetAddress[] addrs = VowifiNetwork.this.getAllByName(hostname);
                     if (addrs == null || addrs.length < 1) {
@@ -326,7 +357,7 @@ public class VowifiNetwork implements Parcelable {
             mConnectionFactory = urlConnectionFactory;
         }
 
-        return mConnectionFactory.openConnection(url, getSocketFactory(), proxy);
+        return mConnectionFactory.openConnection(url, socketFactory, proxy);
     }
 
     /**
@@ -338,7 +369,7 @@ public class VowifiNetwork implements Parcelable {
      * @throws UnknownHostException if the address lookup fails.
      */
     public InetAddress[] getAllByName(String host) throws UnknownHostException {
-        InetAddress[] addrs = InetAddress.getAllByNameOnNet(host, mWifiNetworkId);
+        InetAddress[] addrs = VowifiResolver.getAllByNameOnNet(host, mWifiNetworkId);
 
         if (addrs == null || addrs.length < 1) {
             Log.e(TAG, "Failed to get all address for the host '" + host + "'.");
@@ -380,7 +411,7 @@ public class VowifiNetwork implements Parcelable {
      *             if the address lookup fails.
      */
     public InetAddress getByName(String host) throws UnknownHostException {
-        InetAddress[] addrs = InetAddress.getAllByNameOnNet(host, mWifiNetworkId);
+        InetAddress[] addrs = VowifiResolver.getAllByNameOnNet(host, mWifiNetworkId);
 
         if (addrs == null || addrs.length < 1) {
             Log.e(TAG, "Failed to get address for the host '" + host + "'.");
@@ -441,25 +472,19 @@ public class VowifiNetwork implements Parcelable {
         @Override
         public Socket createSocket(String host, int port, InetAddress localHost, int localPort)
                 throws IOException {
-            InetSocketAddress localAddress = null;
-            if (TextUtils.isEmpty(mLocalAddress)) {
-                localAddress = new InetSocketAddress(localHost, localPort);
-            } else {
-                localAddress = new InetSocketAddress(mLocalAddress, localPort);
-            }
-
-            return connectToHost(host, port, localAddress);
+            return connectToHost(host, port, localHost, localPort);
         }
 
 
         @Override
         public Socket createSocket(InetAddress address, int port, InetAddress localAddress,
                 int localPort) throws IOException {
-            Socket socket = new Socket();
+            Socket socket;
             if (TextUtils.isEmpty(mLocalAddress)) {
+                socket = new Socket();
                 socket.bind(new InetSocketAddress(localAddress, localPort));
             } else {
-                socket.bind(new InetSocketAddress(mLocalAddress, localPort));
+                socket = createBoundSocket(address, localPort);
             }
             socket.connect(new InetSocketAddress(address, port));
 
@@ -476,38 +501,71 @@ public class VowifiNetwork implements Parcelable {
 
         @Override
         public Socket createSocket(String host, int port) throws IOException {
-            InetSocketAddress localAddress = null;
-            if (!TextUtils.isEmpty(mLocalAddress)) {
-                localAddress = new InetSocketAddress(mLocalAddress, 0);
-            }
-            return connectToHost(host, port, localAddress);
+            return connectToHost(host, port, null, 0);
         }
 
         @Override
         public Socket createSocket() throws IOException {
+            // The family of the local address depends on the address connected to, which isn't
+            // known yet, so bind on connect
+            return new Socket() {
+                @Override
+                public void connect(SocketAddress endpoint, int timeout) throws IOException {
+                    if (!isBound() && endpoint instanceof InetSocketAddress) {
+                        final String localAddress =
+                                getLocalAddressFor(((InetSocketAddress) endpoint).getAddress());
+                        if (!TextUtils.isEmpty(localAddress)) {
+                            bind(new InetSocketAddress(localAddress, 0));
+                        }
+                    }
+                    super.connect(endpoint, timeout);
+                }
+            };
+        }
+
+        /**
+         * @return the local address of the family of a remote address, or the preferred local
+         *         address if the network has none of that family
+         */
+        private String getLocalAddressFor(InetAddress remote) {
+            final String familyAddress =
+                    remote instanceof Inet4Address ? mLocalIP4Addr : mLocalIP6Addr;
+            return !TextUtils.isEmpty(familyAddress) ? familyAddress : mLocalAddress;
+        }
+
+        private Socket createBoundSocket(InetAddress remote, int localPort) throws IOException {
             Socket socket = new Socket();
-            if (!TextUtils.isEmpty(mLocalAddress)) {
-                socket.bind(new InetSocketAddress(mLocalAddress, 0));
+            final String localAddress = getLocalAddressFor(remote);
+            if (!TextUtils.isEmpty(localAddress)) {
+                socket.bind(new InetSocketAddress(localAddress, localPort));
             }
             return socket;
         }
 
-        private Socket connectToHost(String host, int port, SocketAddress localAddress)
-                throws IOException {
+        private Socket connectToHost(String host, int port, InetAddress localHost,
+                int localPort) throws IOException {
             // Lookup addresses only on this Network.
             InetAddress[] hostAddresses = getAllByName(host);
             if (hostAddresses == null || hostAddresses.length < 1) {
                 throw new UnknownHostException(host);
             }
 
-            // Try all addresses.
+            // Try all addresses, the preferred family comes first. OkHttp connects through
+            // createSocket() and walks the same order with its own timeouts.
             for (int i = 0; i < hostAddresses.length; i++) {
                 try {
-                    Socket socket = createSocket();
-                    if (localAddress != null) {
-                        socket.bind(localAddress);
+                    Socket socket;
+                    if (TextUtils.isEmpty(mLocalAddress)) {
+                        socket = new Socket();
+                        if (localHost != null) {
+                            socket.bind(new InetSocketAddress(localHost, localPort));
+                        }
+                    } else {
+                        socket = createBoundSocket(hostAddresses[i], localPort);
                     }
                     socket.connect(new InetSocketAddress(hostAddresses[i], port));
+                    Log.d(TAG, "Connected to '" + host + "' over "
+                            + (hostAddresses[i] instanceof Inet4Address ? "IPv4" : "IPv6"));
                     return socket;
                 } catch (IOException e) {
                     if (i == (hostAddresses.length - 1)) throw e;
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service.vowifi;
+
+import android.util.Log;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Resolves hosts on the VoWiFi networks for all the {@link VowifiNetwork} instances.
+ *
+ * Concurrent lookups of the same host on the same network share a single resolution, which
+ * runs on the thread of the first caller. The other callers only wait for it for a bounded time,
+ * then the first of them to give up starts a new lookup that the others join, so that a hung
+ * lookup doesn't hold them all nor leave each to resolve the host on its own.
+ */
+final class VowifiResolver {
+    private static final String TAG = "VowifiResolver";
+
+    // How long a caller waits for the lookup in flight before starting a new one
+    private static final long JOIN_TIMEOUT_MS = 5 * 1000;
+
+    // The lookups in flight by network and host, guarded by itself
+    private static final HashMap<String, FutureTask<InetAddress[]>> sInFlight =
+            new HashMap<String, FutureTask<InetAddress[]>>();
+
+    private VowifiResolver() {}
+
+    /**
+     * Resolve a host on a network, joining a lookup of the same host already in flight
+     *
+     * @param host  the hostname or literal IP string to be resolved
+     * @param netId the network to resolve on
+     * @return the addresses of the host, in the order of the resolver
+     * @throws UnknownHostException if the lookup fails
+     */
+    static InetAddress[] getAllByNameOnNet(final String host, final int netId)
+            throws UnknownHostException {
+        final String key = netId + "/" + host;
+        FutureTask<InetAddress[]> lookup;
+        boolean owner = false;
+        synchronized (sInFlight) {
+            lookup = sInFlight.get(key);
+            if (lookup == null) {
+                lookup = startLookupLocked(key, host, netId);
+                owner = true;
+            }
+        }
+        try {
+            if (owner) {
+                lookup.run();
+                return lookup.get();
+            }
+            Log.d(TAG, "Join the lookup in flight of '" + host + "' on net " + netId);
+            try {
+                return lookup.get(JOIN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                Log.w(TAG, "Lookup in flight of '" + host + "' on net " + netId
+                        + " is slow, resolve again");
+            }
+            // Give up on the slow lookup, the first caller to do so starts a new one and the
+            // others join it, rather than each resolving the host
+            final FutureTask<InetAddress[]> slowLookup = lookup;
+            owner = false;
+            synchronized (sInFlight) {
+                lookup = sInFlight.get(key);
+                if (lookup == null || lookup == slowLookup) {
+                    lookup = startLookupLocked(key, host, netId);
+                    owner = true;
+                }
+            }
+            if (owner) {
+                lookup.run();
+            }
+            return lookup.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException(host);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UnknownHostException) {
+                throw (UnknownHostException) e.getCause();
+            }
+            final UnknownHostException unknownHost = new UnknownHostException(host);
+            unknownHost.initCause(e.getCause());
+            throw unknownHost;
+        }
+    }
+
+    /**
+     * Register a new lookup in flight for a host, replacing any slow one. The caller runs it.
+     */
+    private static FutureTask<InetAddress[]> startLookupLocked(final String key,
+            final String host, final int netId) {
+        final FutureTask<InetAddress[]> lookup =
+                new FutureTask<InetAddress[]>(new Callable<InetAddress[]>() {
+            @Override
+            public InetAddress[] call() throws UnknownHostException {
+                return InetAddress.getAllByNameOnNet(host, netId);
+            }
+        }) {
+            @Override
+            protected void done() {
+                synchronized (sInFlight) {
+                    if (sInFlight.get(key) == this) {
+                        sInFlight.remove(key);
+                    }
+                }
+            }
+        };
+        sInFlight.put(key, lookup);
+        return lookup;
+    }
+}
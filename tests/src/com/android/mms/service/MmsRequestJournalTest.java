@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.AtomicFile;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+@RunWith(AndroidJUnit4.class)
+public class MmsRequestJournalTest {
+    private static final long TIMEOUT_MILLIS = 5 * 1000;
+    private static final int SUB_ID = 1;
+
+    private Context mContext;
+    private File mFile;
+    private FakeRequestManager mRequestManager;
+
+    /**
+     * Collects the replayed requests
+     */
+    private static class FakeRequestManager implements MmsRequest.RequestManager {
+        final List<MmsRequest> mAdded = new ArrayList<>();
+
+        @Override
+        public synchronized void addSimRequest(MmsRequest request) {
+            mAdded.add(request);
+        }
+
+        @Override
+        public boolean getAutoPersistingPref() {
+            // The results of the downloads reach the provider, so they can be replayed
+            return true;
+        }
+
+        @Override
+        public byte[] readPduFromContentUri(Uri contentUri, int maxSize) {
+            return null;
+        }
+
+        @Override
+        public ParcelFileDescriptor openPduFromContentUri(Uri contentUri) {
+            return null;
+        }
+
+        @Override
+        public ParcelFileDescriptor openPduToContentUri(Uri contentUri) {
+            return null;
+        }
+
+        @Override
+        public boolean writePduToContentUri(Uri contentUri, byte[] pdu) {
+            return false;
+        }
+
+        @Override
+        public boolean scheduleRetry(MmsRequest request, long delayMillis) {
+            return false;
+        }
+
+        @Override
+        public int getPendingRequestCount(int subId) {
+            return 0;
+        }
+
+        synchronized List<MmsRequest> getAdded() {
+            return new ArrayList<>(mAdded);
+        }
+    }
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mFile = new File(mContext.getCacheDir(), "mms_request_journal_test");
+        deleteJournal();
+        mRequestManager = new FakeRequestManager();
+    }
+
+    @After
+    public void tearDown() {
+        deleteJournal();
+    }
+
+    private void deleteJournal() {
+        new AtomicFile(mFile).delete();
+    }
+
+    private DownloadRequest newDownload(int index) {
+        return new DownloadRequest(mRequestManager, SUB_ID, "http://mmsc/" + index,
+                Uri.parse("content://test/" + index), null/*downloadedIntent*/,
+                "com.android.test", null/*configOverrides*/, mContext);
+    }
+
+    private MmsRequestJournal openJournal() throws Exception {
+        final MmsRequestJournal journal = new MmsRequestJournal(mContext, mFile);
+        assertTrue(journal.awaitWrites(TIMEOUT_MILLIS));
+        return journal;
+    }
+
+    private List<MmsRequest> replay(MmsRequestJournal journal) throws Exception {
+        journal.replay(mRequestManager);
+        assertTrue(journal.awaitWrites(TIMEOUT_MILLIS));
+        return mRequestManager.getAdded();
+    }
+
+    @Test
+    public void testEmptyJournalReplaysNothing() throws Exception {
+        final MmsRequestJournal journal = openJournal();
+        assertEquals(0, replay(journal).size());
+        journal.shutdown();
+    }
+
+    @Test
+    public void testRoundTripWithCompaction() throws Exception {
+        final int count = 80;
+        final MmsRequestJournal journal = openJournal();
+        final List<DownloadRequest> requests = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            final DownloadRequest request = newDownload(i);
+            journal.recordAdded(request);
+            requests.add(request);
+        }
+        // Completing every other request, enough of them to compact the journal
+        for (int i = 0; i < count; i += 2) {
+            journal.recordCompleted(requests.get(i));
+        }
+        // Requests added after the compaction must be appended to the rewritten journal
+        final DownloadRequest late = newDownload(count);
+        journal.recordAdded(late);
+        assertTrue(journal.awaitWrites(TIMEOUT_MILLIS));
+        assertTrue(journal.getCompactionCount() > 0);
+        assertEquals(count / 2 + 1, journal.getLiveRequestCount());
+        journal.shutdown();
+
+        final MmsRequestJournal reopened = openJournal();
+        final List<MmsRequest> replayed = replay(reopened);
+        assertEquals(count / 2 + 1, replayed.size());
+        // In the order the requests were accepted
+        for (int i = 0; i < count / 2; i++) {
+            final DownloadRequest request = (DownloadRequest) replayed.get(i);
+            assertEquals("http://mmsc/" + (2 * i + 1), request.getLocationUrl());
+            assertEquals(Uri.parse("content://test/" + (2 * i + 1)), request.getContentUri());
+            assertEquals(SUB_ID, request.getSubId());
+            assertTrue(request.getJournalId() != 0);
+        }
+        assertEquals("http://mmsc/" + count,
+                ((DownloadRequest) replayed.get(count / 2)).getLocationUrl());
+        reopened.shutdown();
+    }
+
+    @Test
+    public void testCompletedRequestsAreNotReplayed() throws Exception {
+        final MmsRequestJournal journal = openJournal();
+        final DownloadRequest completed = newDownload(0);
+        final DownloadRequest pending = newDownload(1);
+        journal.recordAdded(completed);
+        journal.recordAdded(pending);
+        journal.recordCompleted(completed);
+        assertTrue(journal.awaitWrites(TIMEOUT_MILLIS));
+        journal.shutdown();
+
+        final MmsRequestJournal reopened = openJournal();
+        final List<MmsRequest> replayed = replay(reopened);
+        assertEquals(1, replayed.size());
+        assertEquals("http://mmsc/1", ((DownloadRequest) replayed.get(0)).getLocationUrl());
+        reopened.shutdown();
+    }
+
+    @Test
+    public void testNewRequestsDontReuseReplayedIds() throws Exception {
+        final MmsRequestJournal journal = openJournal();
+        final DownloadRequest pending = newDownload(0);
+        journal.recordAdded(pending);
+        assertTrue(journal.awaitWrites(TIMEOUT_MILLIS));
+        journal.shutdown();
+
+        final MmsRequestJournal reopened = openJournal();
+        final List<MmsRequest> replayed = replay(reopened);
+        final DownloadRequest added = newDownload(1);
+        reopened.recordAdded(added);
+        assertEquals(1, replayed.size());
+        assertTrue(added.getJournalId() != replayed.get(0).getJournalId());
+        reopened.shutdown();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static org.junit.Assert.assertEquals;
+
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class NetworkLingerPolicyTest {
+    private static final long DOWNLOAD_LINGER_MILLIS = 5 * 1000;
+    private static final long MAX_MILLIS = NetworkLingerPolicy.DEFAULT_MAX_LINGER_MILLIS;
+    private static final long START = 100 * 1000;
+
+    private NetworkLingerPolicy mPolicy;
+
+    @Before
+    public void setUp() {
+        mPolicy = new NetworkLingerPolicy("test");
+    }
+
+    @Test
+    public void testSendWithoutHistoryReleasesNow() {
+        mPolicy.onAcquire(START);
+        assertEquals(0, mPolicy.getLingerMillis(START + 1000, false, 0, MAX_MILLIS));
+    }
+
+    @Test
+    public void testDownloadKeepsNetworkForAcknowledgement() {
+        mPolicy.onAcquire(START);
+        assertEquals(DOWNLOAD_LINGER_MILLIS,
+                mPolicy.getLingerMillis(START + 1000, true, 0, MAX_MILLIS));
+    }
+
+    @Test
+    public void testDownloadLingerIsFloorOverCarrierCap() {
+        mPolicy.onAcquire(START);
+        assertEquals(DOWNLOAD_LINGER_MILLIS,
+                mPolicy.getLingerMillis(START + 1000, true, 0, 1000));
+        assertEquals(DOWNLOAD_LINGER_MILLIS,
+                mPolicy.getLingerMillis(START + 1000, true, 3, 1000));
+    }
+
+    @Test
+    public void testCarrierCapZeroDisablesSendLinger() {
+        mPolicy.onAcquire(START);
+        mPolicy.onAcquire(START + 1000);
+        assertEquals(0, mPolicy.getLingerMillis(START + 2000, false, 2, 0));
+        assertEquals(DOWNLOAD_LINGER_MILLIS,
+                mPolicy.getLingerMillis(START + 2000, true, 2, 0));
+    }
+
+    @Test
+    public void testPendingRequestsKeepNetworkUpToCap() {
+        mPolicy.onAcquire(START);
+        assertEquals(MAX_MILLIS, mPolicy.getLingerMillis(START + 1000, false, 1, MAX_MILLIS));
+    }
+
+    @Test
+    public void testBurstLingersTwiceTheInterval() {
+        mPolicy.onAcquire(START);
+        mPolicy.onAcquire(START + 1000);
+        mPolicy.onAcquire(START + 2000);
+        assertEquals(2000, mPolicy.getLingerMillis(START + 2500, false, 0, MAX_MILLIS));
+    }
+
+    @Test
+    public void testBurstLingerIsCapped() {
+        mPolicy.onAcquire(START);
+        mPolicy.onAcquire(START + 10 * 1000);
+        assertEquals(MAX_MILLIS,
+                mPolicy.getLingerMillis(START + 10 * 1000, false, 0, MAX_MILLIS));
+    }
+
+    @Test
+    public void testIntervalAboveCapIsNoBurst() {
+        mPolicy.onAcquire(START);
+        mPolicy.onAcquire(START + 20 * 1000);
+        assertEquals(0, mPolicy.getLingerMillis(START + 20 * 1000, false, 0, MAX_MILLIS));
+        assertEquals(DOWNLOAD_LINGER_MILLIS,
+                mPolicy.getLingerMillis(START + 20 * 1000, true, 0, MAX_MILLIS));
+    }
+
+    @Test
+    public void testOldArrivalsAreIgnored() {
+        mPolicy.onAcquire(START);
+        mPolicy.onAcquire(START + 1000);
+        // Both fall out of the one minute window
+        assertEquals(0, mPolicy.getLingerMillis(START + 2 * 60 * 1000, false, 0, MAX_MILLIS));
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.mms.service;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import com.google.android.mms.pdu.CharacterSets;
+import com.google.android.mms.pdu.EncodedStringValue;
+import com.google.android.mms.pdu.GenericPdu;
+import com.google.android.mms.pdu.PduBody;
+import com.google.android.mms.pdu.PduComposer;
+import com.google.android.mms.pdu.PduHeaders;
+import com.google.android.mms.pdu.PduParser;
+import com.google.android.mms.pdu.PduPart;
+import com.google.android.mms.pdu.SendReq;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+
+@RunWith(AndroidJUnit4.class)
+public class PduHeaderParserTest {
+    private byte[] mPdu;
+
+    @Before
+    public void setUp() throws Exception {
+        final SendReq sendReq = new SendReq();
+        sendReq.setFrom(new EncodedStringValue("+15550100"));
+        sendReq.setTo(new EncodedStringValue[] {
+                new EncodedStringValue("+15550101"), new EncodedStringValue("+15550102") });
+        sendReq.setSubject(new EncodedStringValue("Subject"));
+        sendReq.setMessageClass(PduHeaders.MESSAGE_CLASS_PERSONAL_STR.getBytes());
+        sendReq.setExpiry(7 * 24 * 60 * 60);
+        sendReq.setPriority(PduHeaders.PRIORITY_NORMAL);
+        sendReq.setDeliveryReport(PduHeaders.VALUE_NO);
+        sendReq.setReadReport(PduHeaders.VALUE_NO);
+        final PduPart part = new PduPart();
+        part.setContentType("text/plain".getBytes());
+        part.setCharset(CharacterSets.UTF_8);
+        part.setContentId("<text_0>".getBytes());
+        part.setContentLocation("text_0.txt".getBytes());
+        part.setData("Hello".getBytes());
+        final PduBody body = new PduBody();
+        body.addPart(part);
+        sendReq.setBody(body);
+        mPdu = new PduComposer(InstrumentationRegistry.getTargetContext(), sendReq).make();
+        assertNotNull(mPdu);
+    }
+
+    private static void assertSameHeaders(SendReq expected, GenericPdu actual) {
+        assertTrue(actual instanceof SendReq);
+        final SendReq sendReq = (SendReq) actual;
+        assertEquals(expected.getMessageType(), sendReq.getMessageType());
+        assertEquals(expected.getMmsVersion(), sendReq.getMmsVersion());
+        assertArrayEquals(expected.getTransactionId(), sendReq.getTransactionId());
+        assertEquals(expected.getFrom().getString(), sendReq.getFrom().getString());
+        assertEquals(expected.getTo().length, sendReq.getTo().length);
+        for (int i = 0; i < expected.getTo().length; i++) {
+            assertEquals(expected.getTo()[i].getString(), sendReq.getTo()[i].getString());
+        }
+        assertEquals(expected.getSubject().getString(), sendReq.getSubject().getString());
+        assertArrayEquals(expected.getMessageClass(), sendReq.getMessageClass());
+        assertEquals(expected.getExpiry(), sendReq.getExpiry());
+        assertEquals(expected.getPriority(), sendReq.getPriority());
+        assertEquals(expected.getDeliveryReport(), sendReq.getDeliveryReport());
+        assertEquals(expected.getReadReport(), sendReq.getReadReport());
+        assertArrayEquals(expected.getContentType(), sendReq.getContentType());
+    }
+
+    @Test
+    public void testHeadersMatchFullParse() {
+        final SendReq full = (SendReq) new PduParser(mPdu, true).parse();
+        assertNotNull(full);
+        final GenericPdu headers = PduHeaderParser.parseHeadersOnly(mPdu, mPdu.length, true);
+        assertNotNull(headers);
+        assertSameHeaders(full, headers);
+        // Without the parts
+        assertEquals(0, ((SendReq) headers).getBody().getPartsNum());
+        assertEquals(1, full.getBody().getPartsNum());
+    }
+
+    @Test
+    public void testHeadersOfPrefixMatchFullParse() {
+        final SendReq full = (SendReq) new PduParser(mPdu, true).parse();
+        final int headersLength = PduHeaderParser.getHeadersLength(mPdu, mPdu.length, true);
+        assertTrue(headersLength > 0 && headersLength < mPdu.length);
+        // Only the headers and the first byte of the body were read
+        final byte[] prefix = Arrays.copyOf(mPdu, headersLength + 1);
+        assertEquals(headersLength,
+                PduHeaderParser.getHeadersLength(prefix, prefix.length, true));
+        assertSameHeaders(full, PduHeaderParser.parseHeadersOnly(prefix, prefix.length, true));
+    }
+
+    @Test
+    public void testCutHeadersAreIncomplete() {
+        final int headersLength = PduHeaderParser.getHeadersLength(mPdu, mPdu.length, true);
+        for (int length = 1; length <= headersLength; length++) {
+            assertEquals(-1, PduHeaderParser.getHeadersLength(mPdu, length, true));
+            assertNull(PduHeaderParser.parseHeadersOnly(mPdu, length, true));
+        }
+    }
+}